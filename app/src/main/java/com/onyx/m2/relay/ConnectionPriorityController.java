@@ -0,0 +1,130 @@
+package com.onyx.m2.relay;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the BLE connection priority from the demand on the link: the rate of messages streamed
+ * by the M2 (which follows the message flags of the consumers) and the depth of the GATT queue.
+ * The high priority, i.e. the shortest connection interval, is only worth its battery cost while
+ * driving with the instrument cluster up; a parked car trickling a few messages per second to the
+ * server does fine at low power.
+ *
+ * Moving up is immediate, as a backlog builds up fast at a long connection interval. Moving down
+ * waits until the demand has stayed below half of the rate of the current mode for the hold
+ * time, so that a burst or a stop at a light doesn't make the connection flap.
+ */
+public class ConnectionPriorityController {
+    private static final String TAG = "ConnectionPriority";
+
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_HIGH = 2;
+    private static final String[] MODE_NAMES = { "low power", "balanced", "high" };
+    private static final int[] PRIORITIES = {
+        BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER,
+        BluetoothGatt.CONNECTION_PRIORITY_BALANCED,
+        BluetoothGatt.CONNECTION_PRIORITY_HIGH,
+    };
+
+    // past this many queued GATT operations, commands are waiting on the connection interval,
+    // whatever the message rate
+    private static final int HIGH_QUEUE_DEPTH = 4;
+
+    private final int[] rates = new int[MODE_NAMES.length];
+    private final long holdTime;
+    private int mode = MODE_HIGH;
+    private boolean lowDemand;
+    private long lowDemandStartTime;
+    private long modeStartTime = System.nanoTime();
+    private final long[] modeTimes = new long[MODE_NAMES.length];
+    private final long[] modeCounts = new long[MODE_NAMES.length];
+
+    /**
+     * Create a controller with the message rates (in msgs/sec) from which the balanced and high
+     * priorities are used, and the time the demand must stay low before moving down.
+     */
+    public ConnectionPriorityController(int balancedRate, int highRate, long holdTimeMs) {
+        setRates(balancedRate, highRate);
+        holdTime = TimeUnit.MILLISECONDS.toNanos(holdTimeMs);
+    }
+
+    /** Set the message rates (in msgs/sec) from which the balanced and high priorities are used. */
+    public synchronized void setRates(int balancedRate, int highRate) {
+        rates[MODE_BALANCED] = balancedRate;
+        rates[MODE_HIGH] = Math.max(highRate, balancedRate);
+    }
+
+    /**
+     * Start over in the given mode, e.g. on a new connection, which starts at high priority for
+     * service discovery and the initial writes.
+     */
+    public synchronized void reset(int mode, long now) {
+        setMode(mode, now);
+        lowDemand = false;
+    }
+
+    /**
+     * Update the mode from the message rate (in msgs/sec) and the number of queued GATT
+     * operations, at the given time (in System.nanoTime() units). Returns the connection priority
+     * to request (BluetoothGatt.CONNECTION_PRIORITY_*) if the mode changed, or -1 otherwise.
+     */
+    public synchronized int update(int rate, int queueDepth, long now) {
+        int demand = queueDepth >= HIGH_QUEUE_DEPTH ? MODE_HIGH : getMode(rate);
+        if (demand > mode) {
+            lowDemand = false;
+            Log.i(TAG, "Demand of " + rate + " msgs/sec, queue depth " + queueDepth + ", going up to " + MODE_NAMES[demand]);
+            setMode(demand, now);
+            return PRIORITIES[demand];
+        }
+        if (demand == mode || rate >= rates[mode] / 2) {
+            lowDemand = false;
+            return -1;
+        }
+        if (!lowDemand) {
+            lowDemand = true;
+            lowDemandStartTime = now;
+            return -1;
+        }
+        if (now - lowDemandStartTime < holdTime) {
+            return -1;
+        }
+        lowDemand = false;
+        Log.i(TAG, "Demand of " + rate + " msgs/sec, going down to " + MODE_NAMES[demand]);
+        setMode(demand, now);
+        return PRIORITIES[demand];
+    }
+
+    public synchronized int getMode() {
+        return mode;
+    }
+
+    /** Print the number of times every mode was entered, and the time spent in it. */
+    public synchronized void dump(PrintWriter writer) {
+        StringBuilder builder = new StringBuilder("BLE connection priority: ").append(MODE_NAMES[mode]);
+        for (int i = 0; i < MODE_NAMES.length; i++) {
+            long time = modeTimes[i] + (i == mode ? System.nanoTime() - modeStartTime : 0);
+            builder.append(", ").append(MODE_NAMES[i]).append(' ').append(modeCounts[i])
+                .append(" times ").append(TimeUnit.NANOSECONDS.toSeconds(time)).append(" s");
+        }
+        writer.println(builder);
+    }
+
+    private int getMode(int rate) {
+        int demand = MODE_LOW_POWER;
+        while (demand < MODE_HIGH && rate >= rates[demand + 1]) {
+            demand++;
+        }
+        return demand;
+    }
+
+    private void setMode(int updated, long now) {
+        modeTimes[mode] += now - modeStartTime;
+        modeStartTime = now;
+        modeCounts[updated]++;
+        mode = updated;
+    }
+}
@@ -0,0 +1,270 @@
+package com.onyx.m2.relay;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Detects a connection that is still up but no longer carries anything: an M2 that stops
+ * notifying the messages while the GATT connection stays up, or a half-open web socket.
+ *
+ * The notifications are expected at the combined rate of the ids the M2 transmits, from the
+ * average interval of every id. The stream is stalled when nothing has arrived for several
+ * times the expected interval, and recovery escalates, giving every step some time to bring the
+ * messages back: re-enabling the notifications, then refreshing the GATT cache, and finally
+ * reconnecting. The web socket is half-open when its queue hasn't gone down for a while, in
+ * which case it's cancelled, and reconnected as after any failure.
+ *
+ * The time to detect (since the last message or since the queue stopped going down) and the
+ * time to recover of every incident are logged.
+ */
+public class ConnectionWatchdog {
+    private static final String TAG = "ConnectionWatchdog";
+    private static final int ID_COUNT = M2Message.ID_COUNT;
+    private static final int SLOT_COUNT = M2Message.BUS_COUNT * ID_COUNT;
+
+    public static final int STEP_NONE = 0;
+    public static final int STEP_ENABLE_NOTIFICATIONS = 1;
+    public static final int STEP_REFRESH_GATT = 2;
+    public static final int STEP_RECONNECT = 3;
+    private static final String[] STEP_NAMES = { "none", "enable notifications", "refresh GATT", "reconnect" };
+    private static final long[] STEP_TIMEOUTS_MS = { 0, 2000, 5000, 10000 };
+
+    // the stream is stalled after this many expected intervals without a message, but never
+    // before the minimum, so that a few late messages aren't taken for a stall
+    private static final int STALL_FACTOR = 4;
+    private static final long MIN_STALL_MS = 500;
+    private static final long FIRST_MESSAGE_TIMEOUT_MS = 5000;
+    // gaps longer than this are pauses (e.g. a reconnection), not the interval of the id
+    private static final long MAX_INTERVAL_MS = 10000;
+
+    private static final long WEB_SOCKET_STALL_MS = 10000;
+
+    /** Runs a recovery step, on the thread calling check(). */
+    public interface Recovery {
+        void recover(int step);
+    }
+
+    private final M2MessageFlags flags;
+    private final Recovery recovery;
+
+    // written by the thread receiving the notifications
+    private final AtomicLongArray lastTimes = new AtomicLongArray(SLOT_COUNT);
+    private final AtomicLongArray intervals = new AtomicLongArray(SLOT_COUNT);
+    private volatile long lastArrivalTime;
+    private volatile long incidentTime;
+    private volatile long recoveredTime;
+
+    // a snapshot of the messages the M2 transmits, taken once per check
+    private final boolean[] transmitted = new boolean[SLOT_COUNT];
+    private boolean watching;
+    private long connectedTime;
+    private boolean idle;
+    private long idleSince;
+    private int step;
+    private long stepTime;
+    private long incidentCount;
+    private final long[] recoveredCounts = new long[STEP_NAMES.length];
+    private long unrecoveredCount;
+    private long lastDetectMs;
+    private long lastRecoverMs;
+
+    private long webSocketQueueSize;
+    private long webSocketStallTime;
+    private long webSocketIncidentTime;
+    private long webSocketIncidentCount;
+    private long lastWebSocketDetectMs;
+    private long lastWebSocketRecoverMs;
+
+    public ConnectionWatchdog(M2MessageFlags flags, Recovery recovery) {
+        this.flags = flags;
+        this.recovery = recovery;
+    }
+
+    /**
+     * Record the arrival of a message, at the given time (in System.nanoTime() units). This is
+     * called for every message, from the thread receiving the notifications.
+     */
+    public void onMessage(int bus, int id, long now) {
+        lastArrivalTime = now;
+        // the gaps of an incident aren't intervals of the ids
+        boolean incident = incidentTime != 0;
+        if (incident && recoveredTime == 0) {
+            recoveredTime = now;
+        }
+        if (bus >= M2Message.BUS_COUNT || id >= ID_COUNT) {
+            return;
+        }
+        int slot = bus * ID_COUNT + id;
+        long last = lastTimes.get(slot);
+        lastTimes.lazySet(slot, now);
+        long gap = now - last;
+        if (incident || last == 0 || gap > TimeUnit.MILLISECONDS.toNanos(MAX_INTERVAL_MS)) {
+            return;
+        }
+        long interval = intervals.get(slot);
+        intervals.lazySet(slot, interval == 0 ? gap : interval + (gap - interval) / 8);
+    }
+
+    /** Start watching the notifications of a newly connected (or rediscovered) M2. */
+    public synchronized void onConnected(long now) {
+        watching = true;
+        connectedTime = now;
+        if (step != STEP_NONE) {
+            // the step that reconnected gets its time from now
+            stepTime = now;
+        }
+    }
+
+    public synchronized void onDisconnected() {
+        watching = false;
+    }
+
+    /** Check the notifications, running the next recovery step if needed. */
+    public synchronized void check(long now) {
+        if (step != STEP_NONE) {
+            checkRecovery(now);
+            return;
+        }
+        if (!watching) {
+            return;
+        }
+        long last = lastArrivalTime;
+        if (idle) {
+            if (last == idleSince) {
+                return;
+            }
+            idle = false;
+        }
+        if (flags.getTransmitted(transmitted) == 0) {
+            // no message is expected
+            return;
+        }
+        long since;
+        long threshold;
+        if (last - connectedTime < 0) {
+            since = connectedTime;
+            threshold = TimeUnit.MILLISECONDS.toNanos(FIRST_MESSAGE_TIMEOUT_MS);
+        } else {
+            since = last;
+            threshold = getStallThreshold(last);
+        }
+        if (threshold == 0 || now - since < threshold) {
+            return;
+        }
+        incidentCount++;
+        lastDetectMs = TimeUnit.NANOSECONDS.toMillis(now - since);
+        Log.w(TAG, "Message stream stalled, detected " + lastDetectMs + " ms after the last message");
+        recoveredTime = 0;
+        incidentTime = now;
+        runStep(STEP_ENABLE_NOTIFICATIONS, now);
+    }
+
+    private void checkRecovery(long now) {
+        long recovered = recoveredTime;
+        if (recovered != 0) {
+            recoveredCounts[step]++;
+            lastRecoverMs = TimeUnit.NANOSECONDS.toMillis(recovered - incidentTime);
+            Log.i(TAG, "Message stream recovered " + lastRecoverMs + " ms after detection, by " + STEP_NAMES[step]);
+            endIncident();
+            return;
+        }
+        if (now - stepTime < TimeUnit.MILLISECONDS.toNanos(STEP_TIMEOUTS_MS[step])) {
+            return;
+        }
+        if (step < STEP_RECONNECT) {
+            runStep(step + 1, now);
+            return;
+        }
+        // e.g. the car is asleep, so stay idle until messages are back
+        unrecoveredCount++;
+        Log.w(TAG, "Message stream not recovered after " + TimeUnit.NANOSECONDS.toMillis(now - incidentTime) + " ms, giving up");
+        idle = true;
+        idleSince = lastArrivalTime;
+        endIncident();
+    }
+
+    private void runStep(int next, long now) {
+        step = next;
+        stepTime = now;
+        Log.i(TAG, "Recovering message stream: " + STEP_NAMES[next]);
+        recovery.recover(next);
+    }
+
+    private void endIncident() {
+        step = STEP_NONE;
+        incidentTime = 0;
+    }
+
+    /**
+     * The time without messages after which the stream is stalled, from the transmitted ids
+     * that were arriving on time when the last message arrived, or 0 if there is no such id.
+     */
+    private long getStallThreshold(long last) {
+        double rate = 0;
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            long interval = intervals.get(slot);
+            if (interval == 0 || !transmitted[slot] || last - lastTimes.get(slot) > STALL_FACTOR * interval) {
+                continue;
+            }
+            rate += 1.0 / interval;
+        }
+        if (rate == 0) {
+            return 0;
+        }
+        return Math.max((long) (STALL_FACTOR / rate), TimeUnit.MILLISECONDS.toNanos(MIN_STALL_MS));
+    }
+
+    /**
+     * Check the queue of an open web socket. Returns true if the web socket looks half-open,
+     * i.e. its queue hasn't gone down for a while, in which case it should be cancelled.
+     */
+    public synchronized boolean checkWebSocket(long queueSize, long now) {
+        long previous = webSocketQueueSize;
+        webSocketQueueSize = queueSize;
+        if (queueSize == 0 || queueSize < previous) {
+            webSocketStallTime = 0;
+            return false;
+        }
+        if (webSocketStallTime == 0) {
+            webSocketStallTime = now;
+            return false;
+        }
+        if (now - webSocketStallTime < TimeUnit.MILLISECONDS.toNanos(WEB_SOCKET_STALL_MS)) {
+            return false;
+        }
+        webSocketIncidentCount++;
+        lastWebSocketDetectMs = TimeUnit.NANOSECONDS.toMillis(now - webSocketStallTime);
+        Log.w(TAG, "Web socket half-open, " + queueSize + " bytes queued, detected " + lastWebSocketDetectMs + " ms after the queue stopped going down");
+        webSocketIncidentTime = now;
+        webSocketStallTime = 0;
+        webSocketQueueSize = 0;
+        return true;
+    }
+
+    /** Called when a web socket opens, which ends a web socket incident. */
+    public synchronized void onWebSocketOpen(long now) {
+        webSocketStallTime = 0;
+        webSocketQueueSize = 0;
+        if (webSocketIncidentTime != 0) {
+            lastWebSocketRecoverMs = TimeUnit.NANOSECONDS.toMillis(now - webSocketIncidentTime);
+            Log.i(TAG, "Web socket recovered " + lastWebSocketRecoverMs + " ms after detection");
+            webSocketIncidentTime = 0;
+        }
+    }
+
+    /** Print the number of incidents, how they were recovered, and the last detection and recovery times. */
+    public synchronized void dump(PrintWriter writer) {
+        StringBuilder builder = new StringBuilder("Message stream stalls: ").append(incidentCount);
+        for (int i = STEP_ENABLE_NOTIFICATIONS; i < STEP_NAMES.length; i++) {
+            builder.append(", ").append(STEP_NAMES[i]).append(' ').append(recoveredCounts[i]);
+        }
+        builder.append(", not recovered ").append(unrecoveredCount)
+            .append(", last detected in ").append(lastDetectMs).append(" ms, recovered in ").append(lastRecoverMs).append(" ms");
+        writer.println(builder);
+        writer.println("Web socket half-open: " + webSocketIncidentCount + ", last detected in " + lastWebSocketDetectMs
+            + " ms, recovered in " + lastWebSocketRecoverMs + " ms");
+    }
+}
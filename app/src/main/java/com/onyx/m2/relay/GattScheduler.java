@@ -0,0 +1,330 @@
+package com.onyx.m2.relay;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes the operations on the M2 GATT server, as Android only supports one outstanding
+ * operation at a time. Operations are queued by priority class (and in order within a class),
+ * and each one is given a timeout, after which it's retried a few times before being dropped.
+ * A message flags command replaces any pending command for the same message, and a command
+ * setting the flags of all messages replaces every pending flags command, as the firmware
+ * would only end up applying the last one anyway. Commands use write without response when the
+ * characteristic supports it.
+ *
+ * The completion callbacks of the GATT callback must be forwarded to the on*() methods. They
+ * don't say which request they complete, so a completion is matched with the current operation
+ * by its target, and an attempt that timed out is remembered for a while, so that its late
+ * completion isn't taken for the completion of the next attempt.
+ */
+public class GattScheduler {
+    private static final String TAG = "GattScheduler";
+
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_COMMAND = 1;
+    public static final int PRIORITY_CONFIG = 2;
+    private static final int PRIORITY_COUNT = 3;
+
+    private static final long TIMEOUT_MS = 2000;
+    private static final long RETRY_DELAY_MS = 50;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long LATE_COMPLETION_MS = 10000;
+
+    private static final int NO_COALESCE_KEY = -1;
+    private static final int ALL_MESSAGES_COALESCE_KEY = -2;
+
+    private static class Operation {
+        final int priority;
+        final BluetoothGattCharacteristic characteristic;
+        final BluetoothGattDescriptor descriptor;
+        final byte[] value;
+        final int mtu;
+        final int coalesceKey;
+        int attempts;
+        long startTime;
+
+        Operation(int priority, BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor, byte[] value, int mtu, int coalesceKey) {
+            this.priority = priority;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+            this.mtu = mtu;
+            this.coalesceKey = coalesceKey;
+        }
+
+        boolean execute(BluetoothGatt gatt) {
+            if (descriptor != null) {
+                descriptor.setValue(value);
+                return gatt.writeDescriptor(descriptor);
+            }
+            if (characteristic != null) {
+                characteristic.setValue(value);
+                return gatt.writeCharacteristic(characteristic);
+            }
+            return gatt.requestMtu(mtu);
+        }
+
+        /** Check if a completion callback, for the characteristic or descriptor if any, is for this operation. */
+        boolean isFor(BluetoothGattCharacteristic completedCharacteristic, BluetoothGattDescriptor completedDescriptor) {
+            if (descriptor != null) {
+                return completedDescriptor != null && completedDescriptor.getUuid().equals(descriptor.getUuid())
+                    && completedDescriptor.getCharacteristic().getUuid().equals(descriptor.getCharacteristic().getUuid());
+            }
+            if (characteristic != null) {
+                return completedCharacteristic != null && completedCharacteristic.getUuid().equals(characteristic.getUuid());
+            }
+            return completedCharacteristic == null && completedDescriptor == null;
+        }
+
+        @Override
+        public String toString() {
+            if (descriptor != null) {
+                return "descriptor " + descriptor.getUuid();
+            }
+            if (characteristic != null) {
+                return "characteristic " + characteristic.getUuid();
+            }
+            return "mtu " + mtu;
+        }
+    }
+
+    private static class TimedOutAttempt {
+        final Operation operation;
+        final long time;
+
+        TimedOutAttempt(Operation operation, long time) {
+            this.operation = operation;
+            this.time = time;
+        }
+    }
+
+    private final ScheduledExecutorService executor;
+    private final ArrayDeque<Operation>[] queues;
+    private BluetoothGatt gatt;
+    private Operation current;
+    private ScheduledFuture<?> timeoutHandle;
+    // the attempts that timed out, whose completion may still come
+    private final ArrayDeque<TimedOutAttempt> timedOut = new ArrayDeque<>();
+
+    private long completedCount;
+    private long coalescedCount;
+    private long failedCount;
+    private long lastLatencyMs;
+    private long maxLatencyMs;
+    private long totalLatencyMs;
+
+    @SuppressWarnings("unchecked")
+    public GattScheduler(ScheduledExecutorService executor) {
+        this.executor = executor;
+        queues = new ArrayDeque[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+    }
+
+    /** Start executing operations on a newly connected GATT server. */
+    public synchronized void start(BluetoothGatt gatt) {
+        this.gatt = gatt;
+        next();
+    }
+
+    /** Stop executing operations, dropping the pending ones. */
+    public synchronized void stop() {
+        gatt = null;
+        current = null;
+        cancelTimeout();
+        timedOut.clear();
+        for (ArrayDeque<Operation> queue : queues) {
+            queue.clear();
+        }
+    }
+
+    /** Queue a write of the characteristic. */
+    public void writeCharacteristic(int priority, BluetoothGattCharacteristic characteristic, byte[] value) {
+        enqueue(new Operation(priority, characteristic, null, value, 0, NO_COALESCE_KEY));
+    }
+
+    /** Queue a write of the descriptor. */
+    public void writeDescriptor(int priority, BluetoothGattDescriptor descriptor, byte[] value) {
+        enqueue(new Operation(priority, null, descriptor, value, 0, NO_COALESCE_KEY));
+    }
+
+    /** Queue an MTU request. */
+    public void requestMtu(int mtu) {
+        enqueue(new Operation(PRIORITY_CONTROL, null, null, null, mtu, NO_COALESCE_KEY));
+    }
+
+    /**
+     * Queue a command, coalescing it with the pending commands it supersedes. The command is
+     * written without response if the characteristic supports it.
+     */
+    public void writeCommand(BluetoothGattCharacteristic characteristic, byte[] command) {
+        if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        }
+        int coalesceKey = NO_COALESCE_KEY;
+        if (command.length >= 4 && command[0] == M2Command.CMDID_SET_MSG_FLAGS) {
+            coalesceKey = ((command[1] & 0xFF) << 16) | ((command[2] & 0xFF) | ((command[3] & 0xFF) << 8));
+        } else if (command.length >= 1 && command[0] == M2Command.CMDID_SET_ALL_MSG_FLAGS) {
+            coalesceKey = ALL_MESSAGES_COALESCE_KEY;
+        }
+        enqueue(new Operation(PRIORITY_COMMAND, characteristic, null, command, 0, coalesceKey));
+    }
+
+    private synchronized void enqueue(Operation operation) {
+        ArrayDeque<Operation> queue = queues[operation.priority];
+        if (operation.coalesceKey != NO_COALESCE_KEY) {
+            Iterator<Operation> pending = queue.iterator();
+            while (pending.hasNext()) {
+                Operation other = pending.next();
+                if (other.coalesceKey == operation.coalesceKey
+                    || (operation.coalesceKey == ALL_MESSAGES_COALESCE_KEY && other.coalesceKey >= 0)) {
+                    pending.remove();
+                    coalescedCount++;
+                }
+            }
+        }
+        queue.add(operation);
+        next();
+    }
+
+    /** Called when a characteristic write completes, successfully or not. */
+    public synchronized void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        onOperationCompleted(characteristic, null, status);
+    }
+
+    /** Called when a descriptor write completes, successfully or not. */
+    public synchronized void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        onOperationCompleted(null, descriptor, status);
+    }
+
+    /** Called when an MTU request completes, successfully or not. */
+    public synchronized void onMtuChanged(int status) {
+        onOperationCompleted(null, null, status);
+    }
+
+    private void onOperationCompleted(BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor, int status) {
+        if (isLateCompletion(characteristic, descriptor)) {
+            return;
+        }
+        Operation operation = current;
+        if (operation == null || !operation.isFor(characteristic, descriptor)) {
+            Log.w(TAG, "Ignoring completion that isn't for the current operation" + (operation != null ? " on " + operation : ""));
+            return;
+        }
+        cancelTimeout();
+        current = null;
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, "Operation on " + operation + " failed with status " + status);
+            retry(operation);
+        } else {
+            long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - operation.startTime);
+            lastLatencyMs = latencyMs;
+            maxLatencyMs = Math.max(maxLatencyMs, latencyMs);
+            totalLatencyMs += latencyMs;
+            completedCount++;
+        }
+        next();
+    }
+
+    /**
+     * Check if a completion is the late one of an attempt that timed out, in which case it's
+     * consumed. The GATT completes operations in order, so it's the oldest matching attempt.
+     */
+    private boolean isLateCompletion(BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor) {
+        long oldest = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(LATE_COMPLETION_MS);
+        while (!timedOut.isEmpty() && timedOut.peek().time - oldest < 0) {
+            timedOut.poll();
+        }
+        Iterator<TimedOutAttempt> attempts = timedOut.iterator();
+        while (attempts.hasNext()) {
+            Operation operation = attempts.next().operation;
+            if (operation.isFor(characteristic, descriptor)) {
+                Log.i(TAG, "Ignoring late completion of timed out operation on " + operation);
+                attempts.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void onTimeout(Operation operation) {
+        if (current != operation) {
+            return;
+        }
+        Log.w(TAG, "Operation on " + operation + " timed out");
+        current = null;
+        timedOut.add(new TimedOutAttempt(operation, System.nanoTime()));
+        retry(operation);
+        next();
+    }
+
+    private void retry(Operation operation) {
+        if (operation.attempts < MAX_ATTEMPTS) {
+            queues[operation.priority].addFirst(operation);
+        } else {
+            Log.e(TAG, "Dropping operation on " + operation + " after " + operation.attempts + " attempts");
+            failedCount++;
+        }
+    }
+
+    private void next() {
+        if (current != null || gatt == null) {
+            return;
+        }
+        for (ArrayDeque<Operation> queue : queues) {
+            Operation operation = queue.poll();
+            if (operation == null) {
+                continue;
+            }
+            operation.attempts++;
+            operation.startTime = System.nanoTime();
+            if (operation.execute(gatt)) {
+                current = operation;
+                timeoutHandle = executor.schedule(() -> onTimeout(operation), TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } else {
+                // the stack is busy with something we didn't schedule (or not ready), try again
+                // a bit later
+                retry(operation);
+                executor.schedule(this::retryNext, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+    }
+
+    private synchronized void retryNext() {
+        next();
+    }
+
+    private void cancelTimeout() {
+        if (timeoutHandle != null) {
+            timeoutHandle.cancel(false);
+            timeoutHandle = null;
+        }
+    }
+
+    /** The number of operations waiting to be executed. */
+    public synchronized int getQueueDepth() {
+        int depth = 0;
+        for (ArrayDeque<Operation> queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /** Print the operations completed, coalesced, and failed, and their latency. */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("GATT operations: " + completedCount + " completed, " + coalescedCount + " coalesced, "
+            + failedCount + " failed, queued " + getQueueDepth() + ", latency last " + lastLatencyMs + " ms, max "
+            + maxLatencyMs + " ms, average " + (completedCount == 0 ? 0 : totalLatencyMs / completedCount) + " ms");
+    }
+}
@@ -11,25 +11,32 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.graphics.Color;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.webkit.JavascriptInterface;
+import android.webkit.WebMessage;
+import android.webkit.WebMessagePort;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 
 import org.greenrobot.eventbus.EventBus;
-import org.greenrobot.eventbus.Subscribe;
-import org.greenrobot.eventbus.ThreadMode;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * The instrument cluster used to display the realtime gauges in a web view. It hides the system
@@ -46,7 +53,37 @@ public class InstrumentClusterActivity extends AppCompatActivity {
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
     private ScheduledFuture<?> statusUpdaterHandle;
 
+    private final M2MessageCoalescer coalescer = new M2MessageCoalescer();
+    private final M2RateLimiter rateLimiter = new M2RateLimiter();
+    private final M2SignalEngine signalEngine = new M2SignalEngine(this::onSignalRedefined);
+    private final StringBuilder signalBuilder = new StringBuilder(1024);
+
+    // the messages the web app subscribed to, with a count per message; once the web app
+    // subscribes to anything, only the messages subscribed to are delivered
+    private final AtomicIntegerArray subscriptions = new AtomicIntegerArray(M2Message.BUS_COUNT * M2Message.ID_COUNT);
+    private volatile boolean subscribing;
+    // web apps get a 'message' event per message and the original status, until they opt in to
+    // the 'messages' event and the extended status (see setBatchedEvents)
+    private volatile boolean batchedEvents;
+    private final StringBuilder flushBuilder = new StringBuilder(4096);
+    private final Handler flushHandler = new Handler(Looper.getMainLooper());
+    private boolean flushing;
+    private long flushIntervalMs;
+    private long lastCoalescedCount;
+    private volatile LatencyHistogram.Snapshot[] latency;
+
+    private Uri webOrigin;
+    private WebMessagePort messagePort;
+    private byte[] packBuffer = new byte[4096];
+    private int packSize;
+
     private RelayService relayService;
+    private M2RingBuffer.Consumer messageConsumer;
+    // the flags set by the web app's own commands, and the ones of its subscriptions, are kept
+    // apart so that e.g. disabling all messages doesn't drop the subscriptions
+    private volatile M2MessageFlags.Consumer commandFlags;
+    private volatile M2MessageFlags.Consumer subscriptionFlags;
+    private M2MessageMetrics.Recorder metricsRecorder;
     private ServiceConnection relayConnection = new ServiceConnection() {
 
         @SuppressLint("DefaultLocale")
@@ -64,15 +101,30 @@ public class InstrumentClusterActivity extends AppCompatActivity {
             });
             relayService.getBleConnected().observe(InstrumentClusterActivity.this, value -> {
                 connected = value;
-                updateM2Status(connected, 0, 0);
+                updateM2Status();
             });
+            relayService.getLatency().observe(InstrumentClusterActivity.this, value -> {
+                latency = value;
+            });
+            metricsRecorder = relayService.getMessageMetrics().getRecorder("instrument cluster");
+            commandFlags = relayService.registerMessageFlags("instrument cluster");
+            subscriptionFlags = relayService.registerMessageFlags("instrument cluster subscriptions");
+            for (int slot = 0; slot < subscriptions.length(); slot++) {
+                if (subscriptions.get(slot) > 0) {
+                    subscriptionFlags.setFlags(slot / M2Message.ID_COUNT, slot % M2Message.ID_COUNT, M2Command.CAN_MSG_FLAG_TRANSMIT);
+                }
+            }
+            messageConsumer = relayService.addMessageConsumer("instrument cluster",
+                this::onM2Message, M2RingBuffer.WaitStrategy.BLOCKING);
         }
 
         public void onServiceDisconnected(ComponentName className) {
             Log.d(TAG, "Service disconnected");
+            messageConsumer = null;
             relayService = null;
             connected = false;
-            updateM2Status(false, 0, 0);
+            latency = null;
+            updateM2Status();
         }
     };
 
@@ -131,7 +183,8 @@ public class InstrumentClusterActivity extends AppCompatActivity {
         } else {
              hostname = preferences.getString("eic_hostname", "");
         }
-        webView.loadUrl("https://" + hostname);
+        webOrigin = Uri.parse("https://" + hostname);
+        webView.loadUrl(webOrigin.toString());
     }
 
     @Override
@@ -140,8 +193,8 @@ public class InstrumentClusterActivity extends AppCompatActivity {
         super.onStart();
         Intent intent = new Intent(this, RelayService.class);
         bindService(intent, relayConnection, Context.BIND_AUTO_CREATE);
-        EventBus.getDefault().register(this);
-        statusUpdaterHandle = scheduler.scheduleWithFixedDelay(() -> updateM2Status(connected, 0, 0),
+        startMessageFlushing();
+        statusUpdaterHandle = scheduler.scheduleWithFixedDelay(this::updateM2Status,
             1, 1, TimeUnit.SECONDS);
     }
 
@@ -150,7 +203,17 @@ public class InstrumentClusterActivity extends AppCompatActivity {
         Log.d(TAG, "Stop");
         super.onStop();
         statusUpdaterHandle.cancel(false);
-        EventBus.getDefault().unregister(this);
+        stopMessageFlushing();
+        if (relayService != null) {
+            commandFlags.unregister();
+            subscriptionFlags.unregister();
+            commandFlags = null;
+            subscriptionFlags = null;
+            if (messageConsumer != null) {
+                relayService.removeMessageConsumer(messageConsumer);
+                messageConsumer = null;
+            }
+        }
         unbindService(relayConnection);
         finishAndRemoveTask();
     }
@@ -161,28 +224,437 @@ public class InstrumentClusterActivity extends AppCompatActivity {
 
         // no idea why the webview needs to be explicitly destroyed, but it does; failure
         // to do this will result in the M2 continuing to send events forever
+        closeMessagePort();
         webView.destroy();
 
         super.onDestroy();
     }
 
     /**
-     * An M2 message is emitted into the event bus. The creative way this is sent to the
-     * Javascript side is needed as any function that looks like it's not being called in
-     * the Javascript world will get minified away by Webpack. By using the window's event
-     * system, this is prevented. The Javascript to receive these events looks like this:
+     * An M2 message is received from the relay service's message ring. Messages arrive much
+     * faster than the display can show them, so they are coalesced to keep only the latest
+     * value of each (bus, id), and delivered to the web app in a single batch per display frame
+     * (or at the configured update rate).
      *
-     *   window.addEventListener('m2', ({ detail: [ ts, bus, id, data ] }) => {
-     *     console.log(`ts: ${ts}, bus: ${bus}, id: ${id}, data: ${data}`)
+     * This runs on the consumer's thread, and the message is only valid during this call, so
+     * it's copied rather than being handed over to the main thread.
+     */
+    void onM2Message(M2Message msg, boolean endOfBatch) {
+        signalEngine.decode(msg);
+        if ((!subscribing || isSubscribed(msg.getBus(), msg.getId()))
+            && rateLimiter.offer(msg, System.nanoTime())) {
+            coalesceM2Message(msg);
+        }
+        if (endOfBatch) {
+            rateLimiter.drain(System.nanoTime(), this::coalesceM2Message);
+        }
+    }
+
+    private void coalesceM2Message(M2Message msg) {
+        if (coalescer.offer(msg)) {
+            metricsRecorder.increment(M2MessageMetrics.COALESCED, msg);
+        }
+    }
+
+    private boolean isSubscribed(int bus, int id) {
+        return bus < M2Message.BUS_COUNT && id < M2Message.ID_COUNT && subscriptions.get(bus * M2Message.ID_COUNT + id) > 0;
+    }
+
+    /**
+     * Subscribe to messages, given the bus and a JSON array of ids, e.g.
+     * M2.subscribe(0, JSON.stringify([0x257, 0x118])). Once the web app has subscribed to any
+     * message, only the messages subscribed to are delivered to it, and the M2 is asked to
+     * transmit them (see M2MessageFlags). Subscriptions are counted, so every
+     * subscribe must be matched by an unsubscribe.
+     */
+    @JavascriptInterface
+    public void subscribe(int bus, String ids) {
+        Log.d(TAG, "subscribe: " + bus + ", " + ids);
+        try {
+            JSONArray json = new JSONArray(ids);
+            for (int i = 0; i < json.length(); i++) {
+                subscribeMessage(bus, json.getInt(i));
+            }
+            subscribing = true;
+        }
+        catch (JSONException e) {
+            Log.e(TAG, "Invalid ids: " + ids);
+        }
+    }
+
+    /** Unsubscribe from messages, given the bus and a JSON array of ids. */
+    @JavascriptInterface
+    public void unsubscribe(int bus, String ids) {
+        Log.d(TAG, "unsubscribe: " + bus + ", " + ids);
+        try {
+            JSONArray json = new JSONArray(ids);
+            for (int i = 0; i < json.length(); i++) {
+                unsubscribeMessage(bus, json.getInt(i));
+            }
+        }
+        catch (JSONException e) {
+            Log.e(TAG, "Invalid ids: " + ids);
+        }
+    }
+
+    private void subscribeMessage(int bus, int id) {
+        if (bus >= M2Message.BUS_COUNT || id >= M2Message.ID_COUNT) {
+            Log.w(TAG, "Ignoring subscription to unsupported message " + bus + "/" + id);
+            return;
+        }
+        M2MessageFlags.Consumer flags = subscriptionFlags;
+        if (subscriptions.getAndIncrement(bus * M2Message.ID_COUNT + id) == 0 && flags != null) {
+            flags.setFlags(bus, id, M2Command.CAN_MSG_FLAG_TRANSMIT);
+        }
+    }
+
+    private void unsubscribeMessage(int bus, int id) {
+        if (bus >= M2Message.BUS_COUNT || id >= M2Message.ID_COUNT) {
+            return;
+        }
+        int slot = bus * M2Message.ID_COUNT + id;
+        M2MessageFlags.Consumer flags = subscriptionFlags;
+        if (subscriptions.get(slot) > 0 && subscriptions.decrementAndGet(slot) == 0 && flags != null) {
+            flags.setFlags(bus, id, (byte) 0);
+        }
+    }
+
+    /**
+     * Send the messages received since the last flush to the web app. The creative way this is
+     * sent to the Javascript side is needed as any function that looks like it's not being
+     * called in the Javascript world will get minified away by Webpack. By using the window's
+     * event system, this is prevented. The Javascript to receive these events looks like this:
+     *
+     *   window.addEventListener('m2', ({ detail: { event, data } }) => {
+     *     if (event === 'message') {
+     *       const [ ts, bus, id, bytes ] = data
+     *       console.log(`ts: ${ts}, bus: ${bus}, id: ${id}, data: ${bytes}`)
+     *     }
      *   })
+     *
+     * Every message gets its own 'message' event, but the events of a flush are all dispatched
+     * by a single script. Web apps that called setBatchedEvents(true) get a single 'messages'
+     * event instead, with the array of the messages.
      */
-    @SuppressLint("DefaultLocale")
-    @Subscribe(threadMode = ThreadMode.MAIN)
-    public void onM2Message(M2Message msg) {
-        Log.d(TAG, "M2 Message ts: " + msg.ts + ", bus: " + msg.bus + ", id: " + msg.id);
-        sendM2Event("message", String.format("[%d, %d, %d, %s]", msg.ts, msg.bus, msg.id, Arrays.toString(msg.data)));
+    void flushM2Messages() {
+        if (coalescer.isEmpty()) {
+            return;
+        }
+        if (messagePort != null) {
+            postM2Messages();
+            return;
+        }
+        RelayService service = relayService;
+        boolean batched = batchedEvents;
+        flushBuilder.setLength(0);
+        if (batched) {
+            flushBuilder.append('[');
+        }
+        coalescer.drain(msg -> {
+            if (service != null) {
+                service.recordLatency(RelayService.LATENCY_DELIVERY, msg.getReceiveTime());
+            }
+            if (!batched) {
+                flushBuilder.append("window.dispatchEvent(new CustomEvent('m2', { detail: { event: 'message', data: ");
+            } else if (flushBuilder.length() > 1) {
+                flushBuilder.append(", ");
+            }
+            flushBuilder.append('[').append(msg.getTs())
+                .append(", ").append(msg.getBus())
+                .append(", ").append(msg.getId())
+                .append(", [");
+            for (int i = 0; i < msg.getLength(); i++) {
+                if (i > 0) {
+                    flushBuilder.append(", ");
+                }
+                flushBuilder.append(msg.getData(i));
+            }
+            flushBuilder.append("]]");
+            if (!batched) {
+                flushBuilder.append(" }}));\n");
+            }
+        });
+        if (batched) {
+            flushBuilder.append(']');
+            sendM2Event("messages", flushBuilder.toString());
+        } else {
+            String script = flushBuilder.toString();
+            runOnUiThread(() -> webView.evaluateJavascript(script, null));
+        }
+    }
+
+    /**
+     * Opt in to the batched events: a single 'messages' event per flush with the array of the
+     * messages, instead of a 'message' event per message, and the extended 'status' event (see
+     * updateM2Status()). Web apps that don't call this keep getting the original events.
+     */
+    @JavascriptInterface
+    public void setBatchedEvents(boolean batched) {
+        Log.d(TAG, "setBatchedEvents: " + batched);
+        batchedEvents = batched;
+    }
+
+    /**
+     * Send the latest value of the signals decoded since the last flush to the web app, as an
+     * object mapping signal names to values:
+     *
+     *   window.addEventListener('m2', ({ detail: { event, data } }) => {
+     *     if (event === 'signals') {
+     *       console.log(`speed: ${data.DI_vehicleSpeed}`)
+     *     }
+     *   })
+     */
+    void flushM2Signals() {
+        if (signalEngine.isEmpty()) {
+            return;
+        }
+        signalBuilder.setLength(0);
+        signalBuilder.append('{');
+        signalEngine.drain((signal, value) -> {
+            if (signalBuilder.length() > 1) {
+                signalBuilder.append(", ");
+            }
+            signalBuilder.append(JSONObject.quote(signal.name)).append(": ").append(value);
+        });
+        signalBuilder.append('}');
+        sendM2Event("signals", signalBuilder.toString());
+    }
+
+    /**
+     * Load signal definitions from JSON (see M2SignalEngine.loadJson() for the format), so that
+     * the web app can subscribe to decoded signal values instead of decoding the messages
+     * itself. Returns the number of signals loaded.
+     */
+    @JavascriptInterface
+    public int loadSignals(String json) {
+        try {
+            return signalEngine.loadJson(json);
+        }
+        catch (JSONException e) {
+            Log.e(TAG, "Invalid signal definitions: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /** Load the signal definitions of a DBC file describing a bus. */
+    @JavascriptInterface
+    public int loadDbc(int bus, String dbc) {
+        return signalEngine.loadDbc(bus, dbc);
+    }
+
+    /**
+     * Subscribe to signals, given a JSON array of their names. Their values are then sent in
+     * 'signals' events (see flushM2Signals()). Returns the number of signals subscribed to.
+     */
+    @JavascriptInterface
+    public int subscribeSignals(String names) {
+        int count = 0;
+        try {
+            JSONArray json = new JSONArray(names);
+            for (int i = 0; i < json.length(); i++) {
+                if (signalEngine.subscribe(json.getString(i))) {
+                    M2Signal signal = signalEngine.getSignal(json.getString(i));
+                    subscribeMessage(signal.bus, signal.id);
+                    count++;
+                }
+            }
+        }
+        catch (JSONException e) {
+            Log.e(TAG, "Invalid signal names: " + names);
+        }
+        return count;
+    }
+
+    /** Move the subscription of a subscribed signal to the message of its new definition. */
+    private void onSignalRedefined(M2Signal previous, M2Signal signal) {
+        subscribeMessage(signal.bus, signal.id);
+        unsubscribeMessage(previous.bus, previous.id);
+    }
+
+    /** Unsubscribe from signals, given a JSON array of their names. */
+    @JavascriptInterface
+    public void unsubscribeSignals(String names) {
+        try {
+            JSONArray json = new JSONArray(names);
+            for (int i = 0; i < json.length(); i++) {
+                M2Signal signal = signalEngine.getSignal(json.getString(i));
+                if (signal != null && signalEngine.unsubscribe(signal.name)) {
+                    unsubscribeMessage(signal.bus, signal.id);
+                }
+            }
+        }
+        catch (JSONException e) {
+            Log.e(TAG, "Invalid signal names: " + names);
+        }
+    }
+
+    /**
+     * Set the maximum rate (in Hz) at which every message is delivered, or 0 for unlimited
+     * (messages are never delivered more than once per flush anyway). The latest value of a
+     * message that arrives faster is delivered once its interval has elapsed.
+     */
+    @JavascriptInterface
+    public void setMaxRate(double hz) {
+        Log.d(TAG, "setMaxRate: " + hz);
+        rateLimiter.setMaxRate(hz);
     }
 
+    /**
+     * Set the maximum rate (in Hz) of messages, given the bus and a JSON array of ids, 0 for
+     * unlimited, or a negative rate to go back to the rate set by setMaxRate().
+     */
+    @JavascriptInterface
+    public void setMessageMaxRate(int bus, String ids, double hz) {
+        Log.d(TAG, "setMessageMaxRate: " + bus + ", " + ids + ", " + hz);
+        try {
+            JSONArray json = new JSONArray(ids);
+            for (int i = 0; i < json.length(); i++) {
+                rateLimiter.setMaxRate(bus, json.getInt(i), hz);
+            }
+        }
+        catch (JSONException e) {
+            Log.e(TAG, "Invalid ids: " + ids);
+        }
+    }
+
+    /**
+     * Set how the values of signals decoded between two 'signals' events are combined, given a
+     * JSON array of their names and one of "latest" (the default), "min", "max", or "mean".
+     */
+    @JavascriptInterface
+    public void setSignalAggregation(String names, String aggregation) {
+        int mode = M2Signal.parseAggregation(aggregation);
+        if (mode < 0) {
+            Log.e(TAG, "Invalid signal aggregation: " + aggregation);
+            return;
+        }
+        try {
+            JSONArray json = new JSONArray(names);
+            for (int i = 0; i < json.length(); i++) {
+                signalEngine.setAggregation(json.getString(i), mode);
+            }
+        }
+        catch (JSONException e) {
+            Log.e(TAG, "Invalid signal names: " + names);
+        }
+    }
+
+    /**
+     * Send the messages received since the last flush to the web app over the binary message
+     * port. The messages are packed back to back in the firmware layout, i.e. for each message
+     * a little endian 32 bit ts, an 8 bit bus, a little endian 16 bit id, an 8 bit length, and
+     * then length data bytes. The WebMessage API only carries strings, so each byte is sent as
+     * one character with a code between 0 and 255, which the web app reads with charCodeAt()
+     * without any parsing.
+     */
+    private void postM2Messages() {
+        RelayService service = relayService;
+        packSize = 0;
+        coalescer.drain(msg -> {
+            if (service != null) {
+                service.recordLatency(RelayService.LATENCY_DELIVERY, msg.getReceiveTime());
+            }
+            if (packSize + msg.size() > packBuffer.length) {
+                packBuffer = Arrays.copyOf(packBuffer, Math.max(packBuffer.length * 2, packSize + msg.size()));
+            }
+            msg.writeTo(packBuffer, packSize);
+            packSize += msg.size();
+        });
+        messagePort.postMessage(new WebMessage(new String(packBuffer, 0, packSize, StandardCharsets.ISO_8859_1)));
+    }
+
+    /**
+     * Open a binary channel to deliver messages to the web app, instead of the message
+     * events. The port is transferred to the page in a window message, and every flush then
+     * posts the packed messages to it (see postM2Messages() for the layout). Calling this
+     * again replaces the previous port. The Javascript to receive messages looks like this:
+     *
+     *   window.addEventListener('message', ({ data, ports }) => {
+     *     if (data === 'm2-port') {
+     *       ports[0].onmessage = ({ data }) => {
+     *         for (let i = 0; i < data.length; i += 8 + data.charCodeAt(i + 7)) {
+     *           const bus = data.charCodeAt(i + 4)
+     *           const id = data.charCodeAt(i + 5) | (data.charCodeAt(i + 6) << 8)
+     *           ...
+     *         }
+     *       }
+     *     }
+     *   })
+     *   M2.openMessagePort()
+     */
+    @JavascriptInterface
+    public void openMessagePort() {
+        Log.d(TAG, "openMessagePort");
+        runOnUiThread(() -> {
+            closeMessagePort();
+            WebMessagePort[] ports = webView.createWebMessageChannel();
+            webView.postWebMessage(new WebMessage("m2-port", new WebMessagePort[] { ports[1] }), webOrigin);
+            messagePort = ports[0];
+        });
+    }
+
+    /** Close the binary channel, falling back to the message events. */
+    @JavascriptInterface
+    public void closeMessagePort() {
+        runOnUiThread(() -> {
+            if (messagePort != null) {
+                Log.d(TAG, "Closing message port");
+                messagePort.close();
+                messagePort = null;
+            }
+        });
+    }
+
+    /**
+     * Start flushing messages to the web app, either on every display frame, or at a fixed
+     * rate if one is configured.
+     */
+    private void startMessageFlushing() {
+        int updateRate = 0;
+        try {
+            updateRate = Integer.parseInt(preferences.getString("eic_update_rate", "0"));
+        }
+        catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid update rate, using display frame rate");
+        }
+        flushing = true;
+        if (updateRate > 0) {
+            flushIntervalMs = Math.max(1, 1000 / updateRate);
+            flushHandler.postDelayed(flushRunnable, flushIntervalMs);
+        } else {
+            flushIntervalMs = 0;
+            Choreographer.getInstance().postFrameCallback(flushFrameCallback);
+        }
+    }
+
+    private void stopMessageFlushing() {
+        flushing = false;
+        flushHandler.removeCallbacks(flushRunnable);
+        Choreographer.getInstance().removeFrameCallback(flushFrameCallback);
+    }
+
+    private final Choreographer.FrameCallback flushFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (flushing) {
+                flushM2Messages();
+                flushM2Signals();
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+    };
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (flushing) {
+                flushM2Messages();
+                flushM2Signals();
+                flushHandler.postDelayed(this, flushIntervalMs);
+            }
+        }
+    };
+
     /** Get a preference value. This allows the web app to have the same access to the
      *  configuration as the native side does. */
     @JavascriptInterface
@@ -205,7 +677,13 @@ public class InstrumentClusterActivity extends AppCompatActivity {
             for (int i = 0; i < data.length; i++) {
                 data[i] = (byte) json.getInt(i);
             }
-            EventBus.getDefault().post(new M2Command(data));
+            M2Command command = new M2Command(data);
+            M2MessageFlags.Consumer flags = commandFlags;
+            RelayService service = relayService;
+            if ((flags == null || !flags.apply(command))
+                && (service == null || !service.serveLastValueCommand(command, coalescer::offer))) {
+                EventBus.getDefault().post(command);
+            }
         }
         catch (JSONException e) {
             Log.e(TAG, "Invalid command: " + array);
@@ -213,11 +691,54 @@ public class InstrumentClusterActivity extends AppCompatActivity {
     }
 
     /**
-     * Set the connect state, updating the web app in the process.
+     * Update the web app with the current status, using the last latency snapshot of the relay
+     * service: the latency is the median time (in ms) from a message being received over BLE to
+     * being delivered to the web view, and the rate is the number of messages received per
+     * second.
      */
     @SuppressLint("DefaultLocale")
-    void updateM2Status(boolean connected, int latency, int rate) {
-        sendM2Event("status", String.format("[%b, %d, %d]", connected, latency, rate));
+    void updateM2Status() {
+        LatencyHistogram.Snapshot[] snapshots = latency;
+        if (snapshots == null) {
+            updateM2Status(connected, 0, 0, "{}");
+            return;
+        }
+        StringBuilder stages = new StringBuilder("{");
+        for (LatencyHistogram.Snapshot snapshot : snapshots) {
+            if (stages.length() > 1) {
+                stages.append(", ");
+            }
+            stages.append(String.format("%s: { p50: %d, p99: %d, max: %d, rate: %d }",
+                snapshot.name, snapshot.p50, snapshot.p99, snapshot.max, snapshot.rate));
+        }
+        stages.append('}');
+        updateM2Status(connected,
+            (int) (snapshots[RelayService.LATENCY_DELIVERY].p50 / 1000),
+            snapshots[RelayService.LATENCY_RECEIVE].rate,
+            stages.toString());
+    }
+
+    /**
+     * Set the connect state, updating the web app in the process, with [ connected, latency,
+     * rate ]. Web apps that opted in with setBatchedEvents(true) also get the number of messages
+     * coalesced since the last update, i.e. the messages that were replaced by a newer value
+     * before the web app got to see them, and the latency of each stage of the pipeline, e.g.
+     * { receive: { p50, p99, max, rate }, dispatch: ..., enqueue: ..., delivery: ... } with the
+     * latencies in microseconds.
+     */
+    @SuppressLint("DefaultLocale")
+    void updateM2Status(boolean connected, int latency, int rate, String stages) {
+        long coalescedCount = coalescer.getCoalescedCount();
+        long coalesced = coalescedCount - lastCoalescedCount;
+        lastCoalescedCount = coalescedCount;
+        if (coalesced > 0) {
+            Log.d(TAG, "Coalesced " + coalesced + " messages");
+        }
+        if (batchedEvents) {
+            sendM2Event("status", String.format("[%b, %d, %d, %d, %s]", connected, latency, rate, coalesced, stages));
+        } else {
+            sendM2Event("status", String.format("[%b, %d, %d]", connected, latency, rate));
+        }
     }
 
     /**
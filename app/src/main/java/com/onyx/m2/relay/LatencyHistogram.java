@@ -0,0 +1,120 @@
+package com.onyx.m2.relay;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram with fixed, log-linear buckets in microseconds: values under 8 us have a
+ * bucket each, and every power of two above that is split into 8 buckets, so a percentile is
+ * accurate to within 12.5%. Recording is a couple of atomic increments, which lets any thread
+ * record without locks or allocation. The histogram is read as per interval snapshots, which
+ * also reset it.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // up to 2^24 us (about 16 s), anything longer goes in the last bucket
+    private static final int MAX_EXPONENT = 24;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    /** The latency percentiles and rate of an interval, in microseconds and per second. */
+    public static class Snapshot {
+        public final String name;
+        public final long count;
+        public final int rate;
+        public final long p50;
+        public final long p99;
+        public final long max;
+
+        Snapshot(String name, long count, int rate, long p50, long p99, long max) {
+            this.name = name;
+            this.count = count;
+            this.rate = rate;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d/sec, p50 %d us, p99 %d us, max %d us", name, rate, p50, p99, max);
+        }
+    }
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong max = new AtomicLong();
+    private long intervalStart = System.nanoTime();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /** Record a latency, in nanoseconds. */
+    public void record(long nanos) {
+        long us = Math.max(nanos / 1000, 0);
+        buckets.incrementAndGet(bucketOf(us));
+        long current = max.get();
+        while (us > current && !max.compareAndSet(current, us)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Take a snapshot of the latencies recorded since the last one, and reset the histogram.
+     * This must only be called from one thread at a time.
+     */
+    public Snapshot snapshot() {
+        long now = System.nanoTime();
+        long elapsed = Math.max(now - intervalStart, 1);
+        intervalStart = now;
+
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.getAndSet(i, 0);
+            count += counts[i];
+        }
+        long maxUs = max.getAndSet(0);
+        int rate = (int) (count * 1_000_000_000L / elapsed);
+        return new Snapshot(name, count, rate,
+            Math.min(percentile(counts, count, 0.50), maxUs),
+            Math.min(percentile(counts, count, 0.99), maxUs),
+            maxUs);
+    }
+
+    /** The upper bound of the bucket holding the percentile. */
+    private static long percentile(long[] counts, long count, double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKET_COUNT - 1);
+    }
+
+    private static int bucketOf(long us) {
+        if (us < SUB_BUCKETS) {
+            return (int) us;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(us);
+        int subBucket = (int) (us >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket, BUCKET_COUNT - 1);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,511 @@
+package com.onyx.m2.relay;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+/**
+ * A web socket server on the phone, that relays the M2 messages to local clients (e.g. another
+ * dashboard app, or a laptop on the hotspot) without the round trip to the cloud. It speaks
+ * the same protocol as the relay web socket: clients connect to ws://<phone>:<port>/relay?pin=<pin>,
+ * get every message as a binary web socket message in the firmware layout, and send M2 commands
+ * as binary messages. Like the server, every client only gets the messages it enabled with
+ * message flag commands, which are arbitrated with the other consumers (see M2MessageFlags).
+ *
+ * Clients can send commands to the M2, so the server requires a pin, and only listens on the
+ * loopback and hotspot interfaces, not on the networks the phone itself is a client of (e.g. a
+ * public wifi). The hotspot comes and goes, so bindInterfaces() must be called periodically.
+ *
+ * Messages are published once into a shared buffer, from which every client is served at its
+ * own pace by its own writer thread. A client that falls behind by more than the size of the
+ * buffer skips the messages it missed, so a slow client never holds back the others, or the
+ * relay.
+ */
+public class LocalRelayServer {
+    private static final String TAG = "LocalRelayServer";
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_CLIENTS = 8;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final int MAX_COMMAND_SIZE = 1024;
+    private static final int WRITE_BATCH_SIZE = 64;
+    // the names Android gives to the interface of the wifi hotspot, depending on the device
+    private static final String[] HOTSPOT_INTERFACE_PREFIXES = { "ap", "swlan", "softap" };
+
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    /**
+     * Handles the commands sent by clients that aren't message flag commands. Messages that
+     * answer the command (e.g. last values) can be sent to the client with the reply visitor.
+     */
+    public interface CommandHandler {
+        void onCommand(M2Command command, M2LastValueCache.Visitor reply);
+    }
+
+    private final int port;
+    private final ByteString pinHash;
+    private final M2MessageFlags messageFlags;
+    private final CommandHandler commandHandler;
+
+    // the shared buffer, holding the last messages published, the one with sequence number n
+    // being in slot n % capacity
+    private final int capacity;
+    private final byte[] frames;
+    private final int[] frameSizes;
+    private long sequence;
+    private int waitingCount;
+
+    private final List<Client> clients = new ArrayList<>();
+    // the clients accepted that haven't completed the handshake yet, which also count toward
+    // the maximum, so connecting without handshaking can't exhaust the threads
+    private int handshakingCount;
+    private final Map<InetAddress, ServerSocket> serverSockets = new HashMap<>();
+    private boolean running;
+
+    public LocalRelayServer(int port, String pin, int capacity, M2MessageFlags messageFlags, CommandHandler commandHandler) {
+        this.port = port;
+        this.pinHash = pin.isEmpty() ? null : ByteString.encodeUtf8(pin).sha256();
+        this.capacity = capacity;
+        this.frames = new byte[capacity * M2Message.MAX_SIZE];
+        this.frameSizes = new int[capacity];
+        this.messageFlags = messageFlags;
+        this.commandHandler = commandHandler;
+    }
+
+    /** Start accepting clients. Fails if no pin is set, or if the loopback interface can't be bound. */
+    public synchronized void start() throws IOException {
+        if (pinHash == null) {
+            throw new IOException("No pin set");
+        }
+        running = true;
+        bind(InetAddress.getLoopbackAddress());
+        bindInterfaces();
+    }
+
+    /**
+     * Start listening on the hotspot interfaces that came up since the last call, and stop
+     * listening on the ones that went down.
+     */
+    public synchronized void bindInterfaces() {
+        if (!running) {
+            return;
+        }
+        Set<InetAddress> addresses = getHotspotAddresses();
+        addresses.add(InetAddress.getLoopbackAddress());
+        for (InetAddress address : new ArrayList<>(serverSockets.keySet())) {
+            if (!addresses.contains(address)) {
+                Log.i(TAG, "Stopped listening on " + address.getHostAddress());
+                closeServerSocket(serverSockets.remove(address));
+            }
+        }
+        for (InetAddress address : addresses) {
+            if (!serverSockets.containsKey(address)) {
+                try {
+                    bind(address);
+                }
+                catch (IOException e) {
+                    Log.w(TAG, "Failed to listen on " + address.getHostAddress() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void bind(InetAddress address) throws IOException {
+        ServerSocket server = new ServerSocket(port, 0, address);
+        serverSockets.put(address, server);
+        new Thread(() -> acceptClients(server), "local relay server").start();
+        Log.i(TAG, "Listening on " + address.getHostAddress() + ":" + port);
+    }
+
+    private static Set<InetAddress> getHotspotAddresses() {
+        Set<InetAddress> addresses = new HashSet<>();
+        try {
+            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || !isHotspotInterface(networkInterface.getName())) {
+                    continue;
+                }
+                for (InterfaceAddress address : networkInterface.getInterfaceAddresses()) {
+                    addresses.add(address.getAddress());
+                }
+            }
+        }
+        catch (SocketException e) {
+            Log.w(TAG, "Failed to list network interfaces: " + e.getMessage());
+        }
+        return addresses;
+    }
+
+    private static boolean isHotspotInterface(String name) {
+        for (String prefix : HOTSPOT_INTERFACE_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void closeServerSocket(ServerSocket server) {
+        try {
+            server.close();
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Failed to close server socket: " + e.getMessage());
+        }
+    }
+
+    /** Stop accepting clients, and disconnect the connected ones. */
+    public void stop() {
+        List<Client> connected;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            for (ServerSocket server : serverSockets.values()) {
+                closeServerSocket(server);
+            }
+            serverSockets.clear();
+            connected = new ArrayList<>(clients);
+        }
+        for (Client client : connected) {
+            client.close();
+        }
+        Log.i(TAG, "Stopped");
+    }
+
+    /** Publish a message to the clients. The message is copied, so the caller keeps ownership of it. */
+    public synchronized void publish(M2Message message) {
+        if (clients.isEmpty()) {
+            return;
+        }
+        int slot = (int) (sequence % capacity);
+        message.writeTo(frames, slot * M2Message.MAX_SIZE);
+        frameSizes[slot] = message.size();
+        sequence++;
+        if (waitingCount > 0) {
+            notifyAll();
+        }
+    }
+
+    public synchronized int getClientCount() {
+        return clients.size();
+    }
+
+    /** Print the state of every client. */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Local clients: " + clients.size() + ", handshaking: " + handshakingCount + ", published: " + sequence);
+        for (Client client : clients) {
+            writer.println("  " + client.name + ": sent " + client.sentCount + ", skipped " + client.skippedCount
+                + ", behind " + (sequence - client.cursor));
+        }
+    }
+
+    private void acceptClients(ServerSocket server) {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                synchronized (this) {
+                    if (clients.size() + handshakingCount >= MAX_CLIENTS) {
+                        Log.w(TAG, "Rejecting " + socket.getRemoteSocketAddress() + ", too many clients");
+                        socket.close();
+                        continue;
+                    }
+                    handshakingCount++;
+                }
+                new Thread(new Client(socket)::run, "local relay client").start();
+            }
+            catch (IOException e) {
+                if (!server.isClosed()) {
+                    Log.e(TAG, "Failed to accept client: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private class Client {
+        private final Socket socket;
+        private final String name;
+        private BufferedSource source;
+        private BufferedSink sink;
+        private M2MessageFlags.Consumer flags;
+        private volatile boolean open;
+
+        // guarded by the server
+        private long cursor;
+        private long sentCount;
+        private long skippedCount;
+
+        Client(Socket socket) {
+            this.socket = socket;
+            this.name = String.valueOf(socket.getRemoteSocketAddress());
+        }
+
+        /** Handshake, then read the client's messages until it disconnects. */
+        void run() {
+            boolean handshaking = true;
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                source = Okio.buffer(Okio.source(socket));
+                sink = Okio.buffer(Okio.sink(socket));
+                if (!handshake()) {
+                    return;
+                }
+                socket.setSoTimeout(0);
+                flags = messageFlags.register("local client " + name);
+                synchronized (LocalRelayServer.this) {
+                    handshakingCount--;
+                    handshaking = false;
+                    if (!running) {
+                        flags.unregister();
+                        return;
+                    }
+                    cursor = sequence;
+                    open = true;
+                    clients.add(this);
+                }
+                Log.i(TAG, "Client " + name + " connected");
+                new Thread(this::writeMessages, "local relay client writer").start();
+                readMessages();
+            }
+            catch (IOException e) {
+                if (open) {
+                    Log.i(TAG, "Client " + name + " disconnected: " + e.getMessage());
+                }
+            }
+            finally {
+                if (handshaking) {
+                    synchronized (LocalRelayServer.this) {
+                        handshakingCount--;
+                    }
+                }
+                close();
+            }
+        }
+
+        private boolean handshake() throws IOException {
+            String requestLine = source.readUtf8LineStrict();
+            String key = null;
+            String line;
+            while (!(line = source.readUtf8LineStrict()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                    key = line.substring(colon + 1).trim();
+                }
+            }
+            String[] request = requestLine.split(" ");
+            if (request.length < 2 || !request[0].equals("GET") || key == null
+                || !(request[1].equals("/relay") || request[1].startsWith("/relay?"))) {
+                Log.w(TAG, "Rejecting " + name + ", invalid request: " + requestLine);
+                sink.writeUtf8("HTTP/1.1 400 Bad Request\r\nConnection: close\r\n\r\n").flush();
+                return false;
+            }
+            if (!isPinValid(Uri.parse(request[1]).getQueryParameter("pin"))) {
+                Log.w(TAG, "Rejecting " + name + ", invalid pin");
+                sink.writeUtf8("HTTP/1.1 403 Forbidden\r\nConnection: close\r\n\r\n").flush();
+                return false;
+            }
+            String accept = ByteString.encodeUtf8(key + WEBSOCKET_GUID).sha1().base64();
+            sink.writeUtf8("HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").flush();
+            return true;
+        }
+
+        /** Check the pin in constant time, comparing hashes so that not even its length leaks. */
+        private boolean isPinValid(String requestPin) {
+            if (requestPin == null) {
+                return false;
+            }
+            return MessageDigest.isEqual(pinHash.toByteArray(), ByteString.encodeUtf8(requestPin).sha256().toByteArray());
+        }
+
+        private void readMessages() throws IOException {
+            while (open) {
+                int opcode = source.readByte() & 0x0F;
+                int second = source.readByte() & 0xFF;
+                long length = second & 0x7F;
+                if (length == 126) {
+                    length = source.readShort() & 0xFFFF;
+                } else if (length == 127) {
+                    length = source.readLong();
+                }
+                if (length < 0 || length > MAX_COMMAND_SIZE) {
+                    throw new IOException("Message too long: " + length);
+                }
+                byte[] mask = (second & 0x80) != 0 ? source.readByteArray(4) : null;
+                byte[] payload = source.readByteArray(length);
+                if (mask != null) {
+                    for (int i = 0; i < payload.length; i++) {
+                        payload[i] ^= mask[i % 4];
+                    }
+                }
+                switch (opcode) {
+                    case OPCODE_BINARY:
+                        onCommand(payload);
+                        break;
+                    case OPCODE_PING:
+                        writeFrame(OPCODE_PONG, payload, 0, payload.length);
+                        flush();
+                        break;
+                    case OPCODE_CLOSE:
+                        writeFrame(OPCODE_CLOSE, payload, 0, Math.min(payload.length, 2));
+                        flush();
+                        return;
+                    case OPCODE_TEXT:
+                        Log.i(TAG, "Client " + name + " sent text message (unsupported)");
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        private void onCommand(byte[] data) {
+            if (data.length == 0) {
+                return;
+            }
+            Log.i(TAG, String.format("%s <- (%d) %s", name, data.length, ByteString.of(data).hex()));
+            M2Command command = new M2Command(data);
+            if (!flags.apply(command)) {
+                commandHandler.onCommand(command, this::reply);
+            }
+        }
+
+        /** Send a message to this client only, whatever its message flags, as it asked for it. */
+        private void reply(M2Message message) {
+            byte[] frame = new byte[message.size()];
+            message.writeTo(frame, 0);
+            try {
+                writeFrame(OPCODE_BINARY, frame, 0, frame.length);
+                flush();
+            }
+            catch (IOException e) {
+                Log.i(TAG, "Failed to reply to client " + name + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        /** Write the messages of the shared buffer, from the cursor of the client. */
+        private void writeMessages() {
+            byte[] batch = new byte[WRITE_BATCH_SIZE * M2Message.MAX_SIZE];
+            int[] batchSizes = new int[WRITE_BATCH_SIZE];
+            try {
+                while (open) {
+                    int count;
+                    synchronized (LocalRelayServer.this) {
+                        while (open && cursor == sequence) {
+                            waitingCount++;
+                            try {
+                                LocalRelayServer.this.wait();
+                            }
+                            catch (InterruptedException e) {
+                                return;
+                            }
+                            finally {
+                                waitingCount--;
+                            }
+                        }
+                        if (sequence - cursor > capacity) {
+                            skippedCount += sequence - capacity - cursor;
+                            cursor = sequence - capacity;
+                        }
+                        count = (int) Math.min(sequence - cursor, WRITE_BATCH_SIZE);
+                        for (int i = 0; i < count; i++) {
+                            int slot = (int) ((cursor + i) % capacity);
+                            System.arraycopy(frames, slot * M2Message.MAX_SIZE, batch, i * M2Message.MAX_SIZE, frameSizes[slot]);
+                            batchSizes[i] = frameSizes[slot];
+                        }
+                        cursor += count;
+                    }
+                    int sent = 0;
+                    for (int i = 0; i < count; i++) {
+                        int offset = i * M2Message.MAX_SIZE;
+                        int bus = batch[offset + 4] & 0xFF;
+                        int id = (batch[offset + 5] & 0xFF) | ((batch[offset + 6] & 0xFF) << 8);
+                        if (flags.isTransmitted(bus, id)) {
+                            writeFrame(OPCODE_BINARY, batch, offset, batchSizes[i]);
+                            sent++;
+                        }
+                    }
+                    if (sent > 0) {
+                        flush();
+                    }
+                    synchronized (LocalRelayServer.this) {
+                        sentCount += sent;
+                    }
+                }
+            }
+            catch (IOException e) {
+                Log.i(TAG, "Failed to write to client " + name + ": " + e.getMessage());
+            }
+            finally {
+                close();
+            }
+        }
+
+        private void writeFrame(int opcode, byte[] data, int offset, int length) throws IOException {
+            synchronized (sink) {
+                sink.writeByte(0x80 | opcode);
+                if (length < 126) {
+                    sink.writeByte(length);
+                } else {
+                    sink.writeByte(126);
+                    sink.writeShort(length);
+                }
+                sink.write(data, offset, length);
+            }
+        }
+
+        private void flush() throws IOException {
+            synchronized (sink) {
+                sink.flush();
+            }
+        }
+
+        void close() {
+            boolean connected;
+            synchronized (LocalRelayServer.this) {
+                connected = clients.remove(this);
+                open = false;
+                LocalRelayServer.this.notifyAll();
+            }
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                Log.w(TAG, "Failed to close client " + name + ": " + e.getMessage());
+            }
+            if (connected) {
+                flags.unregister();
+                Log.i(TAG, "Client " + name + " closed");
+            }
+        }
+    }
+}
@@ -22,6 +22,21 @@ public class M2Command {
         this.cmd = data[0];
     }
 
+    /** Create a command setting the flags of a message, i.e. [cmd, bus, id lo, id hi, flags]. */
+    public static M2Command setMessageFlags(int bus, int id, byte flags) {
+        return new M2Command(new byte[] { CMDID_SET_MSG_FLAGS, (byte) bus, (byte) id, (byte) (id >> 8), flags });
+    }
+
+    /** Create a command setting the flags of all messages, i.e. [cmd, flags]. */
+    public static M2Command setAllMessageFlags(byte flags) {
+        return new M2Command(new byte[] { CMDID_SET_ALL_MSG_FLAGS, flags });
+    }
+
+    /** Create a command requesting the last value of a message, i.e. [cmd, bus, id lo, id hi]. */
+    public static M2Command getMessageLastValue(int bus, int id) {
+        return new M2Command(new byte[] { CMDID_GET_MSG_LAST_VALUE, (byte) bus, (byte) id, (byte) (id >> 8) });
+    }
+
     public boolean isEnableAllMessages() {
         return data[0] == CMDID_SET_ALL_MSG_FLAGS && data[1] == CAN_MSG_FLAG_TRANSMIT;
     }
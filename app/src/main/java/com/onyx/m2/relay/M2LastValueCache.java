@@ -0,0 +1,126 @@
+package com.onyx.m2.relay;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last value received for every (bus, id), so that requests for last values can be answered
+ * locally instead of going over BLE to the M2. The table is directly indexed by (bus, id) and
+ * stores every entry in primitive longs: the time it was updated, the message header, and up to
+ * 8 data bytes (longer messages aren't cached). Updates don't allocate or lock; there must be a
+ * single thread updating, while any thread can read. Each entry has a version that is odd while
+ * it's being updated, which readers use to retry instead of returning a torn value.
+ */
+public class M2LastValueCache {
+    private static final int BUS_COUNT = M2Message.BUS_COUNT;
+    private static final int ID_COUNT = M2Message.ID_COUNT;
+    private static final int MAX_DATA_LENGTH = 8;
+
+    private static final int VERSION = 0;
+    private static final int TIME = 1;
+    private static final int HEADER = 2;
+    private static final int DATA = 3;
+    private static final int ENTRY_SIZE = 4;
+
+    /** Receives the cached messages. */
+    public interface Visitor {
+        void visit(M2Message message);
+    }
+
+    /** Receives the (bus, id) of the stale entries. */
+    public interface StaleVisitor {
+        void visit(int bus, int id);
+    }
+
+    private final AtomicLongArray table = new AtomicLongArray(BUS_COUNT * ID_COUNT * ENTRY_SIZE);
+
+    /** Record the message as the last value of its (bus, id). */
+    public void update(M2Message message) {
+        int bus = message.getBus();
+        int id = message.getId();
+        int length = message.getLength();
+        if (bus >= BUS_COUNT || id >= ID_COUNT || length > MAX_DATA_LENGTH) {
+            return;
+        }
+        long header = (message.getTs() & 0xFFFFFFFFL) | ((long) bus << 32) | ((long) id << 40) | ((long) length << 56);
+        long data = 0;
+        for (int i = 0; i < length; i++) {
+            data |= (long) message.getData(i) << (8 * i);
+        }
+        int entry = (bus * ID_COUNT + id) * ENTRY_SIZE;
+        long version = table.get(entry + VERSION);
+        table.set(entry + VERSION, version + 1);
+        table.set(entry + TIME, System.nanoTime());
+        table.set(entry + HEADER, header);
+        table.set(entry + DATA, data);
+        table.set(entry + VERSION, version + 2);
+    }
+
+    /**
+     * Get the last value of the (bus, id) if it was received within the maximum age, loading it
+     * into the message. Returns false if there is no such value.
+     */
+    public boolean get(int bus, int id, long maxAgeNanos, M2Message message) {
+        if (bus >= BUS_COUNT || id >= ID_COUNT) {
+            return false;
+        }
+        byte[] scratch = new byte[M2Message.HEADER_SIZE + MAX_DATA_LENGTH];
+        return load((bus * ID_COUNT + id) * ENTRY_SIZE, System.nanoTime() - maxAgeNanos, message, scratch) == 1;
+    }
+
+    /**
+     * Visit the last value of every (bus, id) received within the maximum age, and pass the
+     * ones that were received at some point but are now older than that to the stale visitor.
+     * Returns the number of stale entries.
+     */
+    public int visitFresh(long maxAgeNanos, Visitor visitor, StaleVisitor staleVisitor) {
+        M2Message message = new M2Message();
+        byte[] scratch = new byte[M2Message.HEADER_SIZE + MAX_DATA_LENGTH];
+        long oldest = System.nanoTime() - maxAgeNanos;
+        int staleCount = 0;
+        for (int slot = 0; slot < BUS_COUNT * ID_COUNT; slot++) {
+            int result = load(slot * ENTRY_SIZE, oldest, message, scratch);
+            if (result == 1) {
+                visitor.visit(message);
+            } else if (result == 0) {
+                staleCount++;
+                if (staleVisitor != null) {
+                    staleVisitor.visit(slot / ID_COUNT, slot % ID_COUNT);
+                }
+            }
+        }
+        return staleCount;
+    }
+
+    /**
+     * Load the entry into the message if it's more recent than the oldest time. Returns 1 if it
+     * was loaded, 0 if it's stale, and -1 if it was never set.
+     */
+    private int load(int entry, long oldest, M2Message message, byte[] scratch) {
+        long version;
+        long time;
+        long header;
+        long data;
+        do {
+            version = table.get(entry + VERSION);
+            time = table.get(entry + TIME);
+            header = table.get(entry + HEADER);
+            data = table.get(entry + DATA);
+        } while ((version & 1) != 0 || version != table.get(entry + VERSION));
+        if (version == 0) {
+            return -1;
+        }
+        if (time - oldest < 0) {
+            return 0;
+        }
+        int length = (int) (header >>> 56);
+        for (int i = 0; i < 7; i++) {
+            scratch[i] = (byte) (header >>> (8 * i));
+        }
+        scratch[7] = (byte) length;
+        for (int i = 0; i < length; i++) {
+            scratch[M2Message.HEADER_SIZE + i] = (byte) (data >>> (8 * i));
+        }
+        message.set(scratch, 0, M2Message.HEADER_SIZE + length);
+        return 1;
+    }
+}
@@ -3,23 +3,116 @@ package com.onyx.m2.relay;
 /**
  * A raw M2 message, conforming to the onyx-m2-firmware specification.
  *
- * The "interesting" part of copying to the integer array is due to Java not
+ * Messages are flyweights over a buffer holding the firmware bytes, and the fields are decoded
+ * when they are read instead of being copied out. The instances on the hot path are the slots
+ * of an {@link M2RingBuffer}, which are reused as the stream goes on, so they are only valid
+ * for the duration of the callback that receives them. A consumer that needs a
+ * message for longer must take a {@link #copy()}.
+ *
+ * The "interesting" part of returning the data bytes as integers is due to Java not
  * having unsigned support. If this isn't done, the Javascript side with receive
  * negative number for the data bytes.
  */
 public class M2Message {
+    public static final int HEADER_SIZE = 8;
+    public static final int MAX_DATA_LENGTH = 255;
+    public static final int MAX_SIZE = HEADER_SIZE + MAX_DATA_LENGTH;
+
+    // the range of buses and (11 bit) ids used for the tables indexed by message
+    public static final int BUS_COUNT = 4;
+    public static final int ID_COUNT = 0x800;
+
+    private final byte[] buffer = new byte[MAX_SIZE];
+    private int size;
+    private long receiveTime;
+
+    /**
+     * Create a standalone message from the firmware bytes. This allocates, so it's meant for
+     * the low rate paths; the message stream uses preallocated instances.
+     */
     public M2Message(byte[] msg) {
-        this.ts = (msg[0] & 0xFF) | ((msg[1] & 0xFF) << 8) | ((msg[2] & 0xFF) << 16) | ((msg[3]  & 0xFF) << 24);
-        this.bus = msg[4] & 0xFF;
-        this.id = (msg[5] & 0xFF) | ((msg[6] & 0xFF) << 8);
-        int len = msg[7] & 0xFF;
-        this.data = new int[len];
-        for (int i = 0; i < len; i++) {
-            this.data[i] = msg[8 + i] & 0xFF;
+        if (!set(msg, 0, msg.length)) {
+            throw new IllegalArgumentException("Malformed M2 message of length " + msg.length);
+        }
+    }
+
+    /** Create an empty message, to be loaded with set(). */
+    M2Message() {
+    }
+
+    /**
+     * Load this message with the firmware bytes found at the specified offset. Returns false
+     * if the bytes don't hold a complete message, in which case the content is undefined.
+     */
+    boolean set(byte[] src, int offset, int length) {
+        if (!isComplete(src, offset, length)) {
+            return false;
         }
+        size = HEADER_SIZE + (src[offset + 7] & 0xFF);
+        System.arraycopy(src, offset, buffer, 0, size);
+        return true;
+    }
+
+    /** Whether the firmware bytes found at the specified offset hold a complete message. */
+    static boolean isComplete(byte[] src, int offset, int length) {
+        return length >= HEADER_SIZE && HEADER_SIZE + (src[offset + 7] & 0xFF) <= length;
+    }
+
+    /** Load this message with a copy of another one. */
+    void copyFrom(M2Message message) {
+        System.arraycopy(message.buffer, 0, buffer, 0, message.size);
+        size = message.size;
+        receiveTime = message.receiveTime;
+    }
+
+    public int getTs() {
+        return (buffer[0] & 0xFF) | ((buffer[1] & 0xFF) << 8) | ((buffer[2] & 0xFF) << 16) | ((buffer[3]  & 0xFF) << 24);
+    }
+
+    public int getBus() {
+        return buffer[4] & 0xFF;
+    }
+
+    public int getId() {
+        return (buffer[5] & 0xFF) | ((buffer[6] & 0xFF) << 8);
+    }
+
+    public int getLength() {
+        return buffer[7] & 0xFF;
+    }
+
+    /** Get the data byte at the specified index, as an unsigned value. */
+    public int getData(int index) {
+        return buffer[HEADER_SIZE + index] & 0xFF;
+    }
+
+    /** The size of the message in bytes, as laid out by the firmware. */
+    public int size() {
+        return size;
+    }
+
+    /** Copy the firmware bytes of the message into the destination buffer. */
+    public void writeTo(byte[] dst, int offset) {
+        System.arraycopy(buffer, 0, dst, offset, size);
+    }
+
+    /**
+     * The time the message was received over BLE, from System.nanoTime(), or 0 if it didn't
+     * come from BLE (e.g. a value served from the cache).
+     */
+    public long getReceiveTime() {
+        return receiveTime;
+    }
+
+    void setReceiveTime(long receiveTime) {
+        this.receiveTime = receiveTime;
+    }
+
+    /** Create a standalone copy of the message that the caller owns outright. */
+    public M2Message copy() {
+        M2Message copy = new M2Message();
+        copy.set(buffer, 0, size);
+        copy.receiveTime = receiveTime;
+        return copy;
     }
-    public final int ts;
-    public final int bus;
-    public final int id;
-    public final int[] data;
 }
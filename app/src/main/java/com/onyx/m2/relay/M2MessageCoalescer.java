@@ -0,0 +1,98 @@
+package com.onyx.m2.relay;
+
+/**
+ * Buffers incoming M2 messages, keeping only the latest value of each (bus, id), until they
+ * are drained. This is used to deliver messages at the rate a consumer can actually use them
+ * (e.g. once per display frame) instead of the rate at which they arrive. Messages are copied
+ * into a per id buffer that is allocated the first time the id is seen, so offering a message
+ * doesn't allocate in the steady state.
+ */
+public class M2MessageCoalescer {
+    private static final int BUS_COUNT = M2Message.BUS_COUNT;
+    private static final int ID_COUNT = M2Message.ID_COUNT;
+    private static final int SLOT_COUNT = BUS_COUNT * ID_COUNT;
+
+    /** Receives the coalesced messages when draining. */
+    public interface Visitor {
+        void visit(M2Message message);
+    }
+
+    private final byte[][] latest = new byte[SLOT_COUNT][];
+    private final long[] receiveTimes = new long[SLOT_COUNT];
+    private final boolean[] dirty = new boolean[SLOT_COUNT];
+    private final int[] dirtySlots = new int[SLOT_COUNT];
+    private int dirtyCount;
+    private final M2Message view = new M2Message();
+
+    private long receivedCount;
+    private long coalescedCount;
+    private long droppedCount;
+
+    /**
+     * Add a message, replacing any pending message with the same (bus, id). The message is
+     * copied, so the caller keeps ownership of it. Returns true if a pending message was
+     * replaced.
+     */
+    public synchronized boolean offer(M2Message message) {
+        receivedCount++;
+        int bus = message.getBus();
+        int id = message.getId();
+        if (bus >= BUS_COUNT || id >= ID_COUNT) {
+            droppedCount++;
+            return false;
+        }
+        int slot = bus * ID_COUNT + id;
+        byte[] buffer = latest[slot];
+        if (buffer == null || buffer.length < message.size()) {
+            buffer = new byte[message.size()];
+            latest[slot] = buffer;
+        }
+        message.writeTo(buffer, 0);
+        receiveTimes[slot] = message.getReceiveTime();
+        if (dirty[slot]) {
+            coalescedCount++;
+            return true;
+        }
+        dirty[slot] = true;
+        dirtySlots[dirtyCount++] = slot;
+        return false;
+    }
+
+    /**
+     * Visit every message that was offered since the last drain, in order of first arrival.
+     * The messages passed to the visitor are only valid for the duration of the visit call.
+     * Returns the number of messages visited.
+     */
+    public synchronized int drain(Visitor visitor) {
+        int count = dirtyCount;
+        for (int i = 0; i < count; i++) {
+            int slot = dirtySlots[i];
+            byte[] buffer = latest[slot];
+            view.set(buffer, 0, buffer.length);
+            view.setReceiveTime(receiveTimes[slot]);
+            dirty[slot] = false;
+            visitor.visit(view);
+        }
+        dirtyCount = 0;
+        return count;
+    }
+
+    public synchronized boolean isEmpty() {
+        return dirtyCount == 0;
+    }
+
+    /** The total number of messages offered. */
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    /** The number of messages that were replaced by a newer one before being drained. */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /** The number of messages ignored because their bus or id is out of range. */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,267 @@
+package com.onyx.m2.relay;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Decides which messages the M2 transmits, by arbitrating between the flags (CAN_MSG_FLAG_*)
+ * requested by every consumer of the messages: the server, the instrument cluster, local
+ * clients, etc. Every consumer registers to get its own flags for every (bus, id), and the
+ * firmware is given the union of the flags of all consumers. Only the changes to the union are
+ * written, so the BLE link only carries the messages that some consumer needs, and a consumer
+ * that stops wanting messages doesn't affect the others.
+ */
+public class M2MessageFlags {
+    private static final String TAG = "M2MessageFlags";
+    private static final int ID_COUNT = M2Message.ID_COUNT;
+    private static final int SLOT_COUNT = M2Message.BUS_COUNT * ID_COUNT;
+
+    // past this many changes, setting the flags of all messages and fixing up the ones that
+    // differ takes fewer commands than setting them one by one
+    private static final int SET_ALL_THRESHOLD = 64;
+
+    /** Where the flag commands go. */
+    public interface Writer {
+        void write(M2Command command);
+    }
+
+    /** The flags requested by a consumer. */
+    public final class Consumer {
+        private final String name;
+        private final AtomicIntegerArray flags = new AtomicIntegerArray(SLOT_COUNT);
+        private volatile boolean configured;
+
+        private Consumer(String name) {
+            this.name = name;
+        }
+
+        /** Set the flags this consumer wants for a message. */
+        public void setFlags(int bus, int id, byte messageFlags) {
+            int slot = slotOf(bus, id);
+            synchronized (M2MessageFlags.this) {
+                configured = true;
+                if (slot < 0) {
+                    // not arbitrated, so pass it through as is
+                    write(M2Command.setMessageFlags(bus, id, messageFlags));
+                    return;
+                }
+                flags.set(slot, messageFlags & 0xFF);
+                update(slot);
+            }
+        }
+
+        /** Set the flags this consumer wants for all messages. */
+        public void setAllFlags(byte messageFlags) {
+            synchronized (M2MessageFlags.this) {
+                configured = true;
+                for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                    flags.set(slot, messageFlags & 0xFF);
+                }
+                update();
+            }
+        }
+
+        /**
+         * Apply a flags command (as sent to the firmware) to the flags of this consumer.
+         * Returns false if the command isn't a flags command.
+         */
+        public boolean apply(M2Command command) {
+            if (command.cmd == M2Command.CMDID_SET_MSG_FLAGS && command.data.length >= 5) {
+                setFlags(command.data[1] & 0xFF, (command.data[2] & 0xFF) | ((command.data[3] & 0xFF) << 8), command.data[4]);
+                return true;
+            }
+            if (command.cmd == M2Command.CMDID_SET_ALL_MSG_FLAGS && command.data.length >= 2) {
+                setAllFlags(command.data[1]);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Check if this consumer wants the message to be transmitted. The flags of messages
+         * that aren't arbitrated aren't known, so those are assumed to be wanted by any consumer
+         * that set flags.
+         */
+        public boolean isTransmitted(int bus, int id) {
+            int slot = slotOf(bus, id);
+            return slot >= 0 ? (flags.get(slot) & M2Command.CAN_MSG_FLAG_TRANSMIT) != 0 : configured;
+        }
+
+        /** Check if this consumer has set any flags since it registered. */
+        public boolean isConfigured() {
+            return configured;
+        }
+
+        /** Drop the flags of this consumer, and stop arbitrating for it. */
+        public void unregister() {
+            synchronized (M2MessageFlags.this) {
+                consumers.remove(this);
+                update();
+            }
+            Log.d(TAG, "Unregistered " + name);
+        }
+    }
+
+    private final Writer writer;
+    private final List<Consumer> consumers = new ArrayList<>();
+    private final byte[] written = new byte[SLOT_COUNT];
+    private final byte[] union = new byte[SLOT_COUNT];
+    private final int[] valueCounts = new int[256];
+    private long writeCount;
+
+    public M2MessageFlags(Writer writer) {
+        this.writer = writer;
+    }
+
+    /** Register a consumer, which starts without wanting any message. */
+    public synchronized Consumer register(String name) {
+        Consumer consumer = new Consumer(name);
+        consumers.add(consumer);
+        Log.d(TAG, "Registered " + name);
+        return consumer;
+    }
+
+    /**
+     * Write the flags of every message, e.g. after reconnecting to an M2 that may have lost them,
+     * or kept flags from before: whatever was written before counts as changed, so the flags of
+     * all messages are set at once, and only the ones that differ are fixed up.
+     */
+    public synchronized void resync() {
+        computeUnion();
+        long count = writeCount;
+        writeChanges(true);
+        Log.i(TAG, "Resynced the flags with " + (writeCount - count) + " commands");
+    }
+
+    /**
+     * Copy whether the M2 transmits every message, indexed by bus * ID_COUNT + id, into the
+     * array. Returns the number of messages transmitted.
+     */
+    public synchronized int getTransmitted(boolean[] transmitted) {
+        int count = 0;
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            transmitted[slot] = (written[slot] & M2Command.CAN_MSG_FLAG_TRANSMIT) != 0;
+            if (transmitted[slot]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** The number of messages the M2 transmits. */
+    public synchronized int getTransmittedCount() {
+        return countTransmitted(written);
+    }
+
+    /** The number of flag commands written to the firmware. */
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    /** Print the number of messages transmitted for every consumer. */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Message flags written: " + writeCount + ", transmitted: " + getTransmittedCount());
+        for (Consumer consumer : consumers) {
+            int count = 0;
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                if ((consumer.flags.get(slot) & M2Command.CAN_MSG_FLAG_TRANSMIT) != 0) {
+                    count++;
+                }
+            }
+            writer.println("  " + consumer.name + ": " + count);
+        }
+    }
+
+    private static int countTransmitted(byte[] flags) {
+        int count = 0;
+        for (byte messageFlags : flags) {
+            if ((messageFlags & M2Command.CAN_MSG_FLAG_TRANSMIT) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Write the changes to the union of the flags of all consumers. */
+    private void update() {
+        computeUnion();
+        int changeCount = 0;
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if (union[slot] != written[slot]) {
+                changeCount++;
+            }
+        }
+        if (changeCount > 0) {
+            writeChanges(changeCount > SET_ALL_THRESHOLD);
+        }
+    }
+
+    /**
+     * Write the flags of the messages whose union differs from what was written, first setting
+     * the flags of all messages to the most common union if asked to.
+     */
+    private void writeChanges(boolean setAll) {
+        if (setAll) {
+            byte common = getMostCommonFlags();
+            write(M2Command.setAllMessageFlags(common));
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                written[slot] = common;
+            }
+        }
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if (union[slot] != written[slot]) {
+                written[slot] = union[slot];
+                write(M2Command.setMessageFlags(slot / ID_COUNT, slot % ID_COUNT, union[slot]));
+            }
+        }
+    }
+
+    private void update(int slot) {
+        union[slot] = getUnion(slot);
+        if (union[slot] != written[slot]) {
+            written[slot] = union[slot];
+            write(M2Command.setMessageFlags(slot / ID_COUNT, slot % ID_COUNT, union[slot]));
+        }
+    }
+
+    private void computeUnion() {
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            union[slot] = getUnion(slot);
+        }
+    }
+
+    private byte getUnion(int slot) {
+        int flags = 0;
+        for (int i = 0; i < consumers.size(); i++) {
+            flags |= consumers.get(i).flags.get(slot);
+        }
+        return (byte) flags;
+    }
+
+    private byte getMostCommonFlags() {
+        for (int i = 0; i < valueCounts.length; i++) {
+            valueCounts[i] = 0;
+        }
+        int common = 0;
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            int value = union[slot] & 0xFF;
+            if (++valueCounts[value] > valueCounts[common]) {
+                common = value;
+            }
+        }
+        return (byte) common;
+    }
+
+    private void write(M2Command command) {
+        writeCount++;
+        writer.write(command);
+    }
+
+    private static int slotOf(int bus, int id) {
+        return bus < M2Message.BUS_COUNT && id < ID_COUNT ? bus * ID_COUNT + id : -1;
+    }
+}
@@ -0,0 +1,183 @@
+package com.onyx.m2.relay;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the M2 messages received, relayed, dropped, coalesced, and spooled, for every (bus, id). The
+ * counters are thread confined: every thread that counts messages has its own recorder, which
+ * only it writes to, so counting is a plain increment and a lazy store, without contention or
+ * locks. Snapshots sum the recorders, and report the rates since the previous snapshot, which
+ * is what tells which messages (and ECUs) are eating the bandwidth.
+ */
+public class M2MessageMetrics {
+    public static final int RECEIVED = 0;
+    public static final int RELAYED = 1;
+    public static final int DROPPED = 2;
+    public static final int COALESCED = 3;
+    public static final int SPOOLED = 4;
+    public static final int COUNTER_COUNT = 5;
+    private static final String[] COUNTER_NAMES = { "received", "relayed", "dropped", "coalesced", "spooled" };
+
+    private static final int BUS_COUNT = M2Message.BUS_COUNT;
+    private static final int ID_COUNT = M2Message.ID_COUNT;
+    private static final int SLOT_COUNT = BUS_COUNT * ID_COUNT;
+    private static final int TOP_ID_COUNT = 5;
+
+    /** The counters of a single thread; only that thread may count with it. */
+    public static final class Recorder {
+        private final AtomicLongArray counts = new AtomicLongArray(COUNTER_COUNT * SLOT_COUNT);
+
+        /** Count a message of the (bus, id); out of range messages are counted against id 0. */
+        public void increment(int counter, int bus, int id) {
+            int slot = bus < BUS_COUNT && id < ID_COUNT ? bus * ID_COUNT + id : 0;
+            int index = counter * SLOT_COUNT + slot;
+            counts.lazySet(index, counts.get(index) + 1);
+        }
+
+        public void increment(int counter, M2Message message) {
+            increment(counter, message.getBus(), message.getId());
+        }
+    }
+
+    /** The totals and per second rates of every counter at some point in time. */
+    public static class Snapshot {
+        public final long[] totals = new long[COUNTER_COUNT];
+        public final int[] rates = new int[COUNTER_COUNT];
+        public final int[][] busRates = new int[COUNTER_COUNT][BUS_COUNT];
+
+        // the (bus << 16 | id) of the ids with the highest rates, and their rates
+        public final int[][] topIds = new int[COUNTER_COUNT][];
+        public final int[][] topIdRates = new int[COUNTER_COUNT][];
+
+        public String getCounterName(int counter) {
+            return COUNTER_NAMES[counter];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (int counter = 0; counter < COUNTER_COUNT; counter++) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(COUNTER_NAMES[counter]).append(' ').append(rates[counter]).append("/sec");
+            }
+            return builder.toString();
+        }
+    }
+
+    private final Map<String, Recorder> recorders = new LinkedHashMap<>();
+    private final long[] previous = new long[COUNTER_COUNT * SLOT_COUNT];
+    private final long[] current = new long[COUNTER_COUNT * SLOT_COUNT];
+    private long previousTime = System.nanoTime();
+
+    /**
+     * Get the recorder with the name, creating it the first time. A recorder that is used by a
+     * different thread over time (e.g. a consumer that is removed and added again) keeps its
+     * counts.
+     */
+    public synchronized Recorder getRecorder(String name) {
+        Recorder recorder = recorders.get(name);
+        if (recorder == null) {
+            recorder = new Recorder();
+            recorders.put(name, recorder);
+        }
+        return recorder;
+    }
+
+    /** Take a snapshot, with the rates since the previous one. */
+    public synchronized Snapshot snapshot() {
+        long now = System.nanoTime();
+        long elapsed = Math.max(now - previousTime, 1);
+        previousTime = now;
+        sum(current);
+
+        Snapshot snapshot = new Snapshot();
+        long[] busDeltas = new long[BUS_COUNT];
+        long[] topRates = new long[TOP_ID_COUNT];
+        int[] topSlots = new int[TOP_ID_COUNT];
+        for (int counter = 0; counter < COUNTER_COUNT; counter++) {
+            Arrays.fill(busDeltas, 0);
+            Arrays.fill(topRates, 0);
+            long total = 0;
+            long delta = 0;
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                int index = counter * SLOT_COUNT + slot;
+                long slotDelta = current[index] - previous[index];
+                total += current[index];
+                delta += slotDelta;
+                busDeltas[slot / ID_COUNT] += slotDelta;
+                insertTop(topRates, topSlots, slotDelta, slot);
+            }
+            snapshot.totals[counter] = total;
+            snapshot.rates[counter] = rate(delta, elapsed);
+            for (int bus = 0; bus < BUS_COUNT; bus++) {
+                snapshot.busRates[counter][bus] = rate(busDeltas[bus], elapsed);
+            }
+
+            int topCount = 0;
+            while (topCount < TOP_ID_COUNT && topRates[topCount] > 0) {
+                topCount++;
+            }
+            snapshot.topIds[counter] = new int[topCount];
+            snapshot.topIdRates[counter] = new int[topCount];
+            for (int i = 0; i < topCount; i++) {
+                snapshot.topIds[counter][i] = ((topSlots[i] / ID_COUNT) << 16) | (topSlots[i] % ID_COUNT);
+                snapshot.topIdRates[counter][i] = rate(topRates[i], elapsed);
+            }
+        }
+        System.arraycopy(current, 0, previous, 0, current.length);
+        return snapshot;
+    }
+
+    /** Write the totals of every counter for every (bus, id) seen, e.g. for dumpsys. */
+    public synchronized void dump(PrintWriter writer) {
+        long[] totals = new long[COUNTER_COUNT * SLOT_COUNT];
+        sum(totals);
+        writer.println("Message metrics (recorders: " + recorders.keySet() + ")");
+        writer.println("  bus     id    received     relayed     dropped   coalesced     spooled");
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            boolean seen = false;
+            for (int counter = 0; counter < COUNTER_COUNT; counter++) {
+                seen |= totals[counter * SLOT_COUNT + slot] != 0;
+            }
+            if (seen) {
+                writer.println(String.format("  %3d  0x%03x  %10d  %10d  %10d  %10d  %10d", slot / ID_COUNT, slot % ID_COUNT,
+                    totals[RECEIVED * SLOT_COUNT + slot], totals[RELAYED * SLOT_COUNT + slot],
+                    totals[DROPPED * SLOT_COUNT + slot], totals[COALESCED * SLOT_COUNT + slot],
+                    totals[SPOOLED * SLOT_COUNT + slot]));
+            }
+        }
+    }
+
+    private void sum(long[] totals) {
+        Arrays.fill(totals, 0);
+        for (Recorder recorder : recorders.values()) {
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] += recorder.counts.get(i);
+            }
+        }
+    }
+
+    private static void insertTop(long[] topRates, int[] topSlots, long value, int slot) {
+        if (value <= topRates[TOP_ID_COUNT - 1]) {
+            return;
+        }
+        int i = TOP_ID_COUNT - 1;
+        while (i > 0 && topRates[i - 1] < value) {
+            topRates[i] = topRates[i - 1];
+            topSlots[i] = topSlots[i - 1];
+            i--;
+        }
+        topRates[i] = value;
+        topSlots[i] = slot;
+    }
+
+    private static int rate(long delta, long elapsedNanos) {
+        return (int) (delta * 1_000_000_000L / elapsedNanos);
+    }
+}
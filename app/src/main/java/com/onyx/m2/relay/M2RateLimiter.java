@@ -0,0 +1,169 @@
+package com.onyx.m2.relay;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Limits the rate at which a consumer gets the messages of every (bus, id), e.g. to what a
+ * display can show or what a server needs for trending. A message arriving less than the
+ * interval of its id after the last one that passed is held back, replacing any message held
+ * for the same id, and is passed when draining once the interval has elapsed. So the consumer
+ * always ends up with the latest value, just not more often than the rate allows.
+ *
+ * Rates are set per (bus, id), falling back to the default rate for the ids without their own
+ * rate. A rate of 0 means unlimited.
+ */
+public class M2RateLimiter {
+    private static final String TAG = "M2RateLimiter";
+    private static final int BUS_COUNT = M2Message.BUS_COUNT;
+    private static final int ID_COUNT = M2Message.ID_COUNT;
+    private static final int SLOT_COUNT = BUS_COUNT * ID_COUNT;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    // the minimum time between messages of every (bus, id), or -1 to use the default
+    private final long[] intervals = new long[SLOT_COUNT];
+    private long defaultInterval;
+    private final long[] nextTimes = new long[SLOT_COUNT];
+
+    private final byte[][] held = new byte[SLOT_COUNT][];
+    private final long[] receiveTimes = new long[SLOT_COUNT];
+    private final boolean[] holding = new boolean[SLOT_COUNT];
+    private final int[] heldSlots = new int[SLOT_COUNT];
+    private int heldCount;
+    private final M2Message view = new M2Message();
+
+    private long limitedCount;
+
+    public M2RateLimiter() {
+        Arrays.fill(intervals, -1);
+    }
+
+    /** Set the default maximum rate (in Hz), or 0 for unlimited. */
+    public synchronized void setMaxRate(double hz) {
+        defaultInterval = toInterval(hz);
+    }
+
+    /**
+     * Set the maximum rate (in Hz) of a (bus, id), 0 for unlimited, or a negative rate to use
+     * the default rate.
+     */
+    public synchronized void setMaxRate(int bus, int id, double hz) {
+        if (!isSupported(bus, id)) {
+            Log.w(TAG, "Ignoring rate of unsupported message " + bus + "/" + id);
+            return;
+        }
+        intervals[bus * ID_COUNT + id] = hz < 0 ? -1 : toInterval(hz);
+    }
+
+    /**
+     * Set the maximum rates of messages from a list of "bus:id=Hz", separated by commas, with
+     * the ids in decimal or hex (e.g. "0:0x257=10, 1:0x118=1"), replacing the rates set before,
+     * so that the ids that aren't in the list anymore go back to the default rate. Returns false
+     * if the list is invalid, in which case the valid entries are still set.
+     */
+    public synchronized boolean setMaxRates(String rates) {
+        Arrays.fill(intervals, -1);
+        boolean valid = true;
+        for (String entry : rates.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            try {
+                int colon = entry.indexOf(':');
+                int equals = entry.indexOf('=');
+                if (colon < 0 || equals < colon) {
+                    throw new NumberFormatException();
+                }
+                int bus = Integer.parseInt(entry.substring(0, colon).trim());
+                int id = Integer.decode(entry.substring(colon + 1, equals).trim());
+                if (!isSupported(bus, id)) {
+                    throw new NumberFormatException();
+                }
+                setMaxRate(bus, id, Double.parseDouble(entry.substring(equals + 1).trim()));
+            }
+            catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid message rate: " + entry);
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Offer a message received at the given time (in System.nanoTime() units). Returns true if
+     * the message can be passed on right away, or false if it's held back (it's copied, so the
+     * caller keeps ownership of it).
+     */
+    public synchronized boolean offer(M2Message message, long now) {
+        int bus = message.getBus();
+        int id = message.getId();
+        if (bus >= BUS_COUNT || id >= ID_COUNT) {
+            return true;
+        }
+        int slot = bus * ID_COUNT + id;
+        long interval = intervals[slot] < 0 ? defaultInterval : intervals[slot];
+        if (interval == 0) {
+            return true;
+        }
+        if (!holding[slot] && now - nextTimes[slot] >= 0) {
+            nextTimes[slot] = now + interval;
+            return true;
+        }
+        byte[] buffer = held[slot];
+        if (buffer == null || buffer.length < message.size()) {
+            buffer = new byte[message.size()];
+            held[slot] = buffer;
+        }
+        message.writeTo(buffer, 0);
+        receiveTimes[slot] = message.getReceiveTime();
+        if (holding[slot]) {
+            limitedCount++;
+        } else {
+            holding[slot] = true;
+            heldSlots[heldCount++] = slot;
+        }
+        return false;
+    }
+
+    /**
+     * Visit the held messages whose interval has elapsed at the given time. The messages passed
+     * to the visitor are only valid for the duration of the visit call. Returns the number of
+     * messages visited.
+     */
+    public synchronized int drain(long now, M2MessageCoalescer.Visitor visitor) {
+        int count = 0;
+        int remaining = 0;
+        for (int i = 0; i < heldCount; i++) {
+            int slot = heldSlots[i];
+            if (now - nextTimes[slot] < 0) {
+                heldSlots[remaining++] = slot;
+                continue;
+            }
+            long interval = intervals[slot] < 0 ? defaultInterval : intervals[slot];
+            nextTimes[slot] = now + interval;
+            holding[slot] = false;
+            byte[] buffer = held[slot];
+            view.set(buffer, 0, buffer.length);
+            view.setReceiveTime(receiveTimes[slot]);
+            visitor.visit(view);
+            count++;
+        }
+        heldCount = remaining;
+        return count;
+    }
+
+    /** The number of messages replaced by a newer one while held back. */
+    public synchronized long getLimitedCount() {
+        return limitedCount;
+    }
+
+    private static boolean isSupported(int bus, int id) {
+        return bus >= 0 && bus < BUS_COUNT && id >= 0 && id < ID_COUNT;
+    }
+
+    private static long toInterval(double hz) {
+        return hz > 0 ? (long) (NANOS_PER_SECOND / hz) : 0;
+    }
+}
@@ -0,0 +1,299 @@
+package com.onyx.m2.relay;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single producer, multiple consumer ring buffer carrying the M2 message stream from the BLE
+ * callback to its consumers (web socket relay, instrument cluster, etc). The slots are
+ * preallocated messages that the producer decodes into, and every consumer has its own thread,
+ * cursor, and wait strategy, so publishing a message takes no locks and allocates nothing.
+ *
+ * A slot is only reused once every critical consumer (e.g. the relay, which must not lose
+ * messages) has moved past it. The producer never blocks: if the slowest critical consumer is a
+ * full ring behind, the new message is dropped and counted as an overflow. The other consumers
+ * don't hold the producer back: they handle a copy of every slot (the producer only waits for a
+ * slot being copied), and one that falls a full ring behind skips the messages it missed, so a
+ * slow instrument cluster or local client never causes drops for the others. Either way, the message passed to a handler is valid until it
+ * returns; a consumer that needs a message for longer must take a copy.
+ */
+public class M2RingBuffer {
+    private static final String TAG = "M2RingBuffer";
+    private static final long BLOCKING_TIMEOUT_NS = 100_000_000;
+    private static final long SLEEPING_NS = 200_000;
+
+    /** How a consumer waits for new messages. */
+    public enum WaitStrategy {
+        /** Park until the producer signals, lowest cpu usage but highest latency. */
+        BLOCKING,
+        /** Poll with short sleeps, trading some cpu for lower latency. */
+        SLEEPING,
+        /** Poll while yielding the cpu, lowest latency but keeps a core busy. */
+        YIELDING
+    }
+
+    /** Receives the messages. */
+    public interface Handler {
+        /**
+         * Handle a message, which is only valid until this returns. The end of batch flag is
+         * set on the last message available at the moment, which is a good time to flush.
+         */
+        void onMessage(M2Message message, boolean endOfBatch);
+    }
+
+    /** A consumer of the ring, running on its own thread. */
+    public static final class Consumer implements Runnable {
+        private final M2RingBuffer ring;
+        private final String name;
+        private final Handler handler;
+        private final WaitStrategy waitStrategy;
+        private final boolean critical;
+        private final AtomicLong sequence;
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile boolean waiting;
+
+        // the copy a non-critical consumer handles, and the sequence of the slot it's copying,
+        // which the producer doesn't overwrite meanwhile
+        private final M2Message copy = new M2Message();
+        private volatile long reading = -1;
+        private volatile long skippedCount;
+
+        private Consumer(M2RingBuffer ring, String name, Handler handler, WaitStrategy waitStrategy, boolean critical, long sequence) {
+            this.ring = ring;
+            this.name = name;
+            this.handler = handler;
+            this.waitStrategy = waitStrategy;
+            this.critical = critical;
+            this.sequence = new AtomicLong(sequence);
+            this.thread = new Thread(this, "M2 " + name);
+        }
+
+        @Override
+        public void run() {
+            long next = sequence.get() + 1;
+            while (running) {
+                long available = ring.cursor.get();
+                if (available < next) {
+                    waitFor(next);
+                    continue;
+                }
+                if (!critical) {
+                    next = handleCopies(next, available);
+                    continue;
+                }
+                for (long s = next; s <= available; s++) {
+                    handle(ring.slots[(int) s & ring.mask], s == available);
+                }
+                sequence.set(available);
+                next = available + 1;
+            }
+        }
+
+        /**
+         * Handle copies of the slots up to the available sequence, returning the next sequence
+         * to handle. The slots aren't held back from the producer, so if it laps this consumer,
+         * the consumer skips ahead to half a ring behind.
+         */
+        private long handleCopies(long next, long available) {
+            for (long s = next; s <= available; s++) {
+                // announced before checking, so that the producer either sees that the slot is
+                // being copied, or is seen overwriting it (see publish)
+                reading = s;
+                if (ring.claimed.get() - s >= ring.slots.length) {
+                    reading = -1;
+                    long resume = Math.max(ring.cursor.get() - ring.slots.length / 2 + 1, s + 1);
+                    skippedCount += resume - s;
+                    sequence.set(resume - 1);
+                    return resume;
+                }
+                copy.copyFrom(ring.slots[(int) s & ring.mask]);
+                reading = -1;
+                handle(copy, s == available);
+            }
+            sequence.set(available);
+            return available + 1;
+        }
+
+        private void handle(M2Message message, boolean endOfBatch) {
+            try {
+                handler.onMessage(message, endOfBatch);
+            }
+            catch (RuntimeException e) {
+                Log.e(TAG, "Consumer " + name + " failed to handle message", e);
+            }
+        }
+
+        private void waitFor(long next) {
+            switch (waitStrategy) {
+                case BLOCKING:
+                    waiting = true;
+                    if (ring.cursor.get() < next && running) {
+                        LockSupport.parkNanos(this, BLOCKING_TIMEOUT_NS);
+                    }
+                    waiting = false;
+                    break;
+                case SLEEPING:
+                    LockSupport.parkNanos(this, SLEEPING_NS);
+                    break;
+                case YIELDING:
+                    Thread.yield();
+                    break;
+            }
+        }
+
+        /** The number of messages published that this consumer hasn't handled yet. */
+        public long getLag() {
+            return ring.cursor.get() - sequence.get();
+        }
+
+        /** The number of messages a non-critical consumer skipped because it fell behind. */
+        public long getSkippedCount() {
+            return skippedCount;
+        }
+    }
+
+    private final M2Message[] slots;
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong(-1);
+    // the sequence the producer is writing, ahead of the cursor while the slot is written
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private volatile Consumer[] consumers = new Consumer[0];
+
+    // only accessed by the producer
+    private long nextSequence;
+    private long cachedGatingSequence = -1;
+
+    private volatile long overflowCount;
+    private volatile long malformedCount;
+
+    /** Create a ring buffer; the capacity is rounded up to a power of two. */
+    public M2RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        slots = new M2Message[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new M2Message();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Publish the message held in the firmware bytes, received at the specified time (from
+     * System.nanoTime()). Returns false if the message is malformed or if there is no room for
+     * it, in which case nothing is claimed. This must only be called from one thread at a time.
+     */
+    public boolean publish(byte[] data, int offset, int length, long receiveTime) {
+        if (!M2Message.isComplete(data, offset, length)) {
+            malformedCount++;
+            return false;
+        }
+        long sequence = nextSequence;
+        long wrapPoint = sequence - slots.length;
+        if (wrapPoint > cachedGatingSequence) {
+            cachedGatingSequence = getMinimumSequence(sequence - 1);
+            if (wrapPoint > cachedGatingSequence) {
+                overflowCount++;
+                return false;
+            }
+        }
+        // claimed before checking, so that a non-critical consumer either sees the slot being
+        // overwritten, or is seen copying it (see handleCopies)
+        claimed.set(sequence);
+        while (wrapPoint >= 0 && isCopying(wrapPoint)) {
+            // the copy only takes a moment, and the consumer skips ahead once it's done
+            Thread.yield();
+        }
+        M2Message slot = slots[(int) sequence & mask];
+        slot.set(data, offset, length);
+        slot.setReceiveTime(receiveTime);
+        nextSequence = sequence + 1;
+        cursor.set(sequence);
+        for (Consumer consumer : consumers) {
+            if (consumer.waiting) {
+                LockSupport.unpark(consumer.thread);
+            }
+        }
+        return true;
+    }
+
+    private long getMinimumSequence(long minimum) {
+        for (Consumer consumer : consumers) {
+            if (consumer.critical) {
+                minimum = Math.min(minimum, consumer.sequence.get());
+            }
+        }
+        return minimum;
+    }
+
+    private boolean isCopying(long sequence) {
+        for (Consumer consumer : consumers) {
+            if (!consumer.critical && consumer.reading == sequence) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a consumer, which starts with the next message published and handles messages on its
+     * own thread until it's removed. A critical consumer gets every message, holding back the
+     * producer, while the others skip messages if they fall behind.
+     */
+    public synchronized Consumer addConsumer(String name, Handler handler, WaitStrategy waitStrategy, boolean critical) {
+        Consumer consumer = new Consumer(this, name, handler, waitStrategy, critical, cursor.get());
+        Consumer[] updated = Arrays.copyOf(consumers, consumers.length + 1);
+        updated[consumers.length] = consumer;
+        consumers = updated;
+        consumer.thread.start();
+        Log.d(TAG, "Added consumer " + name);
+        return consumer;
+    }
+
+    /** Remove a consumer, stopping its thread. Its handler isn't called once this returns. */
+    public void removeConsumer(Consumer consumer) {
+        synchronized (this) {
+            int index = Arrays.asList(consumers).indexOf(consumer);
+            if (index < 0) {
+                return;
+            }
+            Consumer[] updated = new Consumer[consumers.length - 1];
+            System.arraycopy(consumers, 0, updated, 0, index);
+            System.arraycopy(consumers, index + 1, updated, index, updated.length - index);
+            consumers = updated;
+        }
+        consumer.running = false;
+        LockSupport.unpark(consumer.thread);
+        if (consumer.thread != Thread.currentThread()) {
+            try {
+                consumer.thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Log.d(TAG, "Removed consumer " + consumer.name);
+    }
+
+    /** The number of messages dropped because the slowest critical consumer was a full ring behind. */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /** The number of malformed messages that were dropped. */
+    public long getMalformedCount() {
+        return malformedCount;
+    }
+
+    /** Print the overflows, and the lag and skipped messages of every consumer. */
+    public void dump(PrintWriter writer) {
+        writer.println("Ring overflows: " + overflowCount + ", malformed: " + malformedCount);
+        for (Consumer consumer : consumers) {
+            writer.println("  " + consumer.name + (consumer.critical ? " (critical)" : "") + ": lag " + consumer.getLag()
+                + ", skipped " + consumer.skippedCount);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.onyx.m2.relay;
+
+import java.util.Arrays;
+
+/**
+ * A CAN signal, as defined in a DBC file, compiled into an extractor: the range of data bytes
+ * holding the signal, and the shift and mask that isolate its raw value once those bytes are
+ * assembled into an integer (in the byte order of the signal). Decoding a signal is then a few
+ * loads and shifts, followed by the sign extension, scale, and offset.
+ *
+ * Signals are limited to 57 bits, so that they always fit in a long once shifted.
+ */
+public class M2Signal {
+    public static final int MAX_LENGTH = 57;
+
+    // how the values decoded between two drains are combined (see M2SignalEngine)
+    public static final int AGGREGATE_LATEST = 0;
+    public static final int AGGREGATE_MIN = 1;
+    public static final int AGGREGATE_MAX = 2;
+    public static final int AGGREGATE_MEAN = 3;
+    private static final String[] AGGREGATION_NAMES = { "latest", "min", "max", "mean" };
+
+    public final String name;
+    public final int bus;
+    public final int id;
+    public final double scale;
+    public final double offset;
+
+    private final boolean littleEndian;
+    private final boolean signed;
+    private final int length;
+    private final int byteOffset;
+    private final int byteCount;
+    private final int shift;
+    private final long mask;
+
+    // the value decoded since the last drain, aggregated, until it's drained (see M2SignalEngine)
+    int aggregation;
+    double value;
+    boolean dirty;
+    private double sum;
+    private int count;
+
+    /**
+     * Compile a signal. The start bit follows the DBC convention: for little endian (Intel)
+     * signals, it's the least significant bit; for big endian (Motorola) signals, it's the most
+     * significant bit, with bits numbered 7 to 0 within byte 0, then 15 to 8 within byte 1, etc.
+     */
+    public M2Signal(String name, int bus, int id, int startBit, int length, boolean littleEndian,
+                    boolean signed, double scale, double offset) {
+        if (length < 1 || length > MAX_LENGTH || startBit < 0 || startBit >= 8 * M2Message.MAX_DATA_LENGTH) {
+            throw new IllegalArgumentException("Unsupported signal " + name + ", start: " + startBit + ", length: " + length);
+        }
+        this.name = name;
+        this.bus = bus;
+        this.id = id;
+        this.length = length;
+        this.littleEndian = littleEndian;
+        this.signed = signed;
+        this.scale = scale;
+        this.offset = offset;
+        this.mask = (1L << length) - 1;
+        this.byteOffset = startBit / 8;
+        if (littleEndian) {
+            shift = startBit % 8;
+            byteCount = (shift + length + 7) / 8;
+        } else {
+            // the first byte holds the bits from the start bit down to bit 0, and the signal
+            // continues with the most significant bits of the following bytes
+            int firstBits = startBit % 8 + 1;
+            if (length <= firstBits) {
+                byteCount = 1;
+                shift = firstBits - length;
+            } else {
+                int remaining = length - firstBits;
+                byteCount = 1 + (remaining + 7) / 8;
+                shift = (8 - remaining % 8) % 8;
+            }
+        }
+    }
+
+    /** Check if the message holds every byte of the signal. */
+    public boolean isIn(M2Message message) {
+        return byteOffset + byteCount <= message.getLength();
+    }
+
+    /** Decode the signal from a message holding it (see isIn()). */
+    public double decode(M2Message message) {
+        long raw = 0;
+        if (littleEndian) {
+            for (int i = byteCount - 1; i >= 0; i--) {
+                raw = (raw << 8) | message.getData(byteOffset + i);
+            }
+        } else {
+            for (int i = 0; i < byteCount; i++) {
+                raw = (raw << 8) | message.getData(byteOffset + i);
+            }
+        }
+        raw = (raw >>> shift) & mask;
+        if (signed) {
+            raw = (raw << (64 - length)) >> (64 - length);
+        }
+        return raw * scale + offset;
+    }
+
+    /** Start aggregating the values of a new drain window. */
+    void resetAggregate() {
+        count = 0;
+    }
+
+    /** Add a value decoded in the current drain window. */
+    void aggregate(double decoded) {
+        if (count++ == 0) {
+            value = decoded;
+            sum = decoded;
+            return;
+        }
+        switch (aggregation) {
+            case AGGREGATE_MIN:
+                value = Math.min(value, decoded);
+                break;
+            case AGGREGATE_MAX:
+                value = Math.max(value, decoded);
+                break;
+            case AGGREGATE_MEAN:
+                sum += decoded;
+                value = sum / count;
+                break;
+            default:
+                value = decoded;
+                break;
+        }
+    }
+
+    /** Get an aggregation from its name ("latest", "min", "max", or "mean"), or -1 if unknown. */
+    public static int parseAggregation(String name) {
+        return Arrays.asList(AGGREGATION_NAMES).indexOf(name);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (bus %d, id 0x%03x)", name, bus, id);
+    }
+}
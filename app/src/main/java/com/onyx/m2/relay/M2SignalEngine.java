@@ -0,0 +1,260 @@
+package com.onyx.m2.relay;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decodes the signals of M2 messages, so that consumers get a few values instead of the raw
+ * frames. The signal definitions are loaded from a DBC file or from JSON, and compiled into
+ * extractors (see M2Signal), but only the signals that are subscribed to are decoded. The
+ * subscribed signals of every (bus, id) are kept in a table that is replaced on every change,
+ * so decoding doesn't lock and only looks at the signals of the message's id.
+ *
+ * Decoding can either pass the values to a listener right away, or keep the value of every
+ * signal until they are drained (e.g. once per display frame). The value drained is the latest
+ * one decoded since the last drain, or the minimum, maximum, or mean of the values decoded
+ * since then, depending on the aggregation of the signal.
+ */
+public class M2SignalEngine {
+    private static final String TAG = "M2SignalEngine";
+    private static final int BUS_COUNT = M2Message.BUS_COUNT;
+    private static final int ID_COUNT = M2Message.ID_COUNT;
+
+    private static final Pattern DBC_MESSAGE = Pattern.compile("^BO_\\s+(\\d+)\\s+\\w+\\s*:");
+    private static final Pattern DBC_SIGNAL = Pattern.compile(
+        "^SG_\\s+(\\w+)\\s*(?:\\w+\\s*)?:\\s*(\\d+)\\|(\\d+)@([01])([+-])\\s*\\(\\s*([^,]+),\\s*([^)]+)\\)");
+
+    /** Receives the decoded signal values. */
+    public interface Listener {
+        void onSignal(M2Signal signal, double value);
+    }
+
+    /**
+     * Told when a subscribed signal is redefined, the new definition staying subscribed in its
+     * place, e.g. so that the new definition's message is transmitted instead of the previous one.
+     */
+    public interface RedefinitionListener {
+        void onRedefined(M2Signal previous, M2Signal signal);
+    }
+
+    private final Map<String, M2Signal> signals = new HashMap<>();
+    private final AtomicReferenceArray<M2Signal[]> subscribed = new AtomicReferenceArray<>(BUS_COUNT * ID_COUNT);
+    private final List<M2Signal> dirtySignals = new ArrayList<>();
+    private final Listener latestValueListener = this::setLatestValue;
+    private final RedefinitionListener redefinitionListener;
+
+    public M2SignalEngine(RedefinitionListener redefinitionListener) {
+        this.redefinitionListener = redefinitionListener;
+    }
+
+    /**
+     * Load signal definitions from JSON, an array of objects of the form:
+     *
+     *   { "name": "DI_vehicleSpeed", "bus": 0, "id": 599, "start": 12, "length": 12,
+     *     "littleEndian": true, "signed": false, "scale": 0.05, "offset": -25 }
+     *
+     * where the start bit follows the DBC convention. Returns the number of signals loaded.
+     */
+    public int loadJson(String json) throws JSONException {
+        JSONArray definitions = new JSONArray(json);
+        int count = 0;
+        for (int i = 0; i < definitions.length(); i++) {
+            JSONObject definition = definitions.getJSONObject(i);
+            count += add(definition.getString("name"), definition.getInt("bus"), definition.getInt("id"),
+                definition.getInt("start"), definition.getInt("length"),
+                definition.optBoolean("littleEndian", true), definition.optBoolean("signed", false),
+                definition.optDouble("scale", 1), definition.optDouble("offset", 0));
+        }
+        Log.i(TAG, "Loaded " + count + " signals from JSON");
+        return count;
+    }
+
+    /**
+     * Load the signals of the messages (BO_) of a DBC file, as being on the bus (DBC files don't
+     * say which bus they describe). Multiplexed signals are decoded whatever the value of their
+     * multiplexer. Returns the number of signals loaded.
+     */
+    public int loadDbc(int bus, String dbc) {
+        int count = 0;
+        int id = -1;
+        for (String line : dbc.split("\n")) {
+            line = line.trim();
+            Matcher message = DBC_MESSAGE.matcher(line);
+            if (message.find()) {
+                id = (int) (Long.parseLong(message.group(1)) & 0x1FFFFFFF);
+                continue;
+            }
+            Matcher signal = DBC_SIGNAL.matcher(line);
+            if (signal.find() && id >= 0) {
+                try {
+                    count += add(signal.group(1), bus, id,
+                        Integer.parseInt(signal.group(2)), Integer.parseInt(signal.group(3)),
+                        signal.group(4).equals("1"), signal.group(5).equals("-"),
+                        Double.parseDouble(signal.group(6).trim()), Double.parseDouble(signal.group(7).trim()));
+                }
+                catch (NumberFormatException e) {
+                    Log.w(TAG, "Invalid DBC signal: " + line);
+                }
+            }
+        }
+        Log.i(TAG, "Loaded " + count + " signals from DBC");
+        return count;
+    }
+
+    private synchronized int add(String name, int bus, int id, int startBit, int length, boolean littleEndian,
+                                 boolean signed, double scale, double offset) {
+        if (bus >= BUS_COUNT || id >= ID_COUNT) {
+            Log.w(TAG, "Ignoring signal " + name + " of unsupported message " + bus + "/" + id);
+            return 0;
+        }
+        try {
+            M2Signal signal = new M2Signal(name, bus, id, startBit, length, littleEndian, signed, scale, offset);
+            M2Signal previous = signals.put(name, signal);
+            if (previous != null && unsubscribe(previous)) {
+                signal.aggregation = previous.aggregation;
+                subscribe(name);
+                redefinitionListener.onRedefined(previous, signal);
+            }
+            return 1;
+        }
+        catch (IllegalArgumentException e) {
+            Log.w(TAG, e.getMessage());
+            return 0;
+        }
+    }
+
+    /** Get a loaded signal, or null if there is no such signal. */
+    public synchronized M2Signal getSignal(String name) {
+        return signals.get(name);
+    }
+
+    /**
+     * Set how the values of a signal decoded between two drains are combined, see
+     * M2Signal.AGGREGATE_*. Returns false if there is no such signal.
+     */
+    public synchronized boolean setAggregation(String name, int aggregation) {
+        M2Signal signal = signals.get(name);
+        if (signal == null) {
+            Log.w(TAG, "Unknown signal " + name);
+            return false;
+        }
+        signal.aggregation = aggregation;
+        return true;
+    }
+
+    /**
+     * Start decoding the signal. Returns false if there is no such signal, or if it's already
+     * subscribed to.
+     */
+    public synchronized boolean subscribe(String name) {
+        M2Signal signal = signals.get(name);
+        if (signal == null) {
+            Log.w(TAG, "Unknown signal " + name);
+            return false;
+        }
+        int slot = signal.bus * ID_COUNT + signal.id;
+        M2Signal[] current = subscribed.get(slot);
+        if (current == null) {
+            subscribed.set(slot, new M2Signal[] { signal });
+        } else if (!Arrays.asList(current).contains(signal)) {
+            M2Signal[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = signal;
+            subscribed.set(slot, updated);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /** Stop decoding the signal. Returns false if it wasn't subscribed to. */
+    public synchronized boolean unsubscribe(String name) {
+        M2Signal signal = signals.get(name);
+        return signal != null && unsubscribe(signal);
+    }
+
+    private boolean unsubscribe(M2Signal signal) {
+        int slot = signal.bus * ID_COUNT + signal.id;
+        M2Signal[] current = subscribed.get(slot);
+        if (current == null) {
+            return false;
+        }
+        List<M2Signal> remaining = new ArrayList<>(Arrays.asList(current));
+        if (!remaining.remove(signal)) {
+            return false;
+        }
+        subscribed.set(slot, remaining.isEmpty() ? null : remaining.toArray(new M2Signal[0]));
+        dirtySignals.remove(signal);
+        signal.dirty = false;
+        return true;
+    }
+
+    /**
+     * Decode the subscribed signals of the message, passing their values to the listener.
+     * Returns the number of signals decoded.
+     */
+    public int decode(M2Message message, Listener listener) {
+        int bus = message.getBus();
+        int id = message.getId();
+        if (bus >= BUS_COUNT || id >= ID_COUNT) {
+            return 0;
+        }
+        M2Signal[] messageSignals = subscribed.get(bus * ID_COUNT + id);
+        if (messageSignals == null) {
+            return 0;
+        }
+        int count = 0;
+        for (M2Signal signal : messageSignals) {
+            if (signal.isIn(message)) {
+                listener.onSignal(signal, signal.decode(message));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Decode the subscribed signals of the message, aggregating their values to drain. */
+    public int decode(M2Message message) {
+        return decode(message, latestValueListener);
+    }
+
+    private synchronized void setLatestValue(M2Signal signal, double value) {
+        if (!signal.dirty) {
+            signal.dirty = true;
+            signal.resetAggregate();
+            dirtySignals.add(signal);
+        }
+        signal.aggregate(value);
+    }
+
+    /**
+     * Visit the signals whose value was decoded since the last drain, with their aggregated
+     * value.
+     * Returns the number of signals visited.
+     */
+    public synchronized int drain(Listener listener) {
+        int count = dirtySignals.size();
+        for (int i = 0; i < count; i++) {
+            M2Signal signal = dirtySignals.get(i);
+            signal.dirty = false;
+            listener.onSignal(signal, signal.value);
+        }
+        dirtySignals.clear();
+        return count;
+    }
+
+    public synchronized boolean isEmpty() {
+        return dirtySignals.isEmpty();
+    }
+}
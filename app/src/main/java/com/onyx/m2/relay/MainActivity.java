@@ -14,6 +14,7 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.TextView;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
@@ -32,6 +33,7 @@ public class MainActivity extends AppCompatActivity {
             relayService.getWebSocketConnected().observe(MainActivity.this, value -> {
                 setLinkConnected(R.id.wsImage, R.id.wsConnectedImage, value);
             });
+            relayService.getMetrics().observe(MainActivity.this, MainActivity.this::setMetrics);
             if (startStopAction != null) {
                 startStopAction.setTitle("Stop Relay");
             }
@@ -112,6 +114,21 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Show the message rates, along with the ids received the most, which are the ones to look
+     * at when the relay runs short on bandwidth.
+     */
+    private void setMetrics(M2MessageMetrics.Snapshot snapshot) {
+        StringBuilder text = new StringBuilder(snapshot.toString());
+        int[] topIds = snapshot.topIds[M2MessageMetrics.RECEIVED];
+        int[] topIdRates = snapshot.topIdRates[M2MessageMetrics.RECEIVED];
+        for (int i = 0; i < topIds.length; i++) {
+            text.append(i == 0 ? "\nTop: " : ", ")
+                .append(String.format("%d:0x%03x %d/sec", topIds[i] >> 16, topIds[i] & 0xFFFF, topIdRates[i]));
+        }
+        ((TextView) findViewById(R.id.metricsText)).setText(text);
+    }
+
     private void setLinkConnected(int imageId, int linkId, boolean connected) {
         int visibility = connected ? View.VISIBLE : View.INVISIBLE;
         float alpha = connected ? 1.0f : 0.5f;
@@ -0,0 +1,117 @@
+package com.onyx.m2.relay;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how the relay degrades when the web socket can't keep up, from the number of bytes
+ * queued by the web socket. OkHttp queues whatever it's given until 16 MiB, at which point it
+ * closes the web socket, so congestion is handled before it gets there, in steps:
+ *
+ *   - past the coalesce watermark, only the latest message of every id is kept until the queue
+ *     goes back down,
+ *   - past the drop watermark, the messages of the ids that aren't a priority are dropped,
+ *   - past the spool watermark, messages are spooled, as if the web socket were down.
+ *
+ * A level is left once the queue is below half of its watermark, so that the relay doesn't
+ * flap between levels around a watermark.
+ */
+public class RelayBackpressure {
+    private static final String TAG = "RelayBackpressure";
+    private static final int BUS_COUNT = M2Message.BUS_COUNT;
+    private static final int ID_COUNT = M2Message.ID_COUNT;
+
+    public static final int LEVEL_NORMAL = 0;
+    public static final int LEVEL_COALESCE = 1;
+    public static final int LEVEL_DROP = 2;
+    public static final int LEVEL_SPOOL = 3;
+    private static final String[] LEVEL_NAMES = { "normal", "coalesce", "drop", "spool" };
+
+    private final long[] watermarks;
+    private final boolean[] priorities = new boolean[BUS_COUNT * ID_COUNT];
+    private volatile int level;
+    private long levelStartTime = System.nanoTime();
+    private final long[] levelTimes = new long[LEVEL_NAMES.length];
+    private final long[] levelCounts = new long[LEVEL_NAMES.length];
+
+    /** Create a policy with the watermarks of every level, in bytes. */
+    public RelayBackpressure(long coalesceWatermark, long dropWatermark, long spoolWatermark) {
+        watermarks = new long[] { 0, coalesceWatermark, dropWatermark, spoolWatermark };
+    }
+
+    /**
+     * Set the ids that are still relayed past the drop watermark, from a list of "bus:id",
+     * separated by commas, with the ids in decimal or hex (e.g. "0:0x257, 0:0x118"), replacing the
+     * ones set before. Returns false if the list is invalid, in which case the valid entries are
+     * still set.
+     */
+    public synchronized boolean setPriorities(String ids) {
+        Arrays.fill(priorities, false);
+        boolean valid = true;
+        for (String entry : ids.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            try {
+                int colon = entry.indexOf(':');
+                if (colon < 0) {
+                    throw new NumberFormatException();
+                }
+                int bus = Integer.parseInt(entry.substring(0, colon).trim());
+                int id = Integer.decode(entry.substring(colon + 1).trim());
+                if (bus < 0 || bus >= BUS_COUNT || id < 0 || id >= ID_COUNT) {
+                    throw new NumberFormatException();
+                }
+                priorities[bus * ID_COUNT + id] = true;
+            }
+            catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid priority id: " + entry);
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    public synchronized boolean isPriority(int bus, int id) {
+        return bus >= 0 && bus < BUS_COUNT && id >= 0 && id < ID_COUNT && priorities[bus * ID_COUNT + id];
+    }
+
+    /** Update the level from the number of bytes queued by the web socket, returning the new level. */
+    public synchronized int update(long queueSize) {
+        int updated = level;
+        while (updated < LEVEL_SPOOL && queueSize >= watermarks[updated + 1]) {
+            updated++;
+        }
+        while (updated > LEVEL_NORMAL && queueSize < watermarks[updated] / 2) {
+            updated--;
+        }
+        if (updated != level) {
+            long now = System.nanoTime();
+            levelTimes[level] += now - levelStartTime;
+            levelStartTime = now;
+            levelCounts[updated]++;
+            Log.i(TAG, "Web socket queue at " + queueSize + " bytes, going from " + LEVEL_NAMES[level] + " to " + LEVEL_NAMES[updated]);
+            level = updated;
+        }
+        return updated;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /** Print the number of times every level was entered, and the time spent in it. */
+    public synchronized void dump(PrintWriter writer) {
+        StringBuilder builder = new StringBuilder("Web socket backpressure: ").append(LEVEL_NAMES[level]);
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            long time = levelTimes[i] + (i == level ? System.nanoTime() - levelStartTime : 0);
+            builder.append(", ").append(LEVEL_NAMES[i]).append(' ').append(levelCounts[i])
+                .append(" times ").append(TimeUnit.NANOSECONDS.toSeconds(time)).append(" s");
+        }
+        writer.println(builder);
+    }
+}
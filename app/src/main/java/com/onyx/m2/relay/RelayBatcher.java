@@ -0,0 +1,116 @@
+package com.onyx.m2.relay;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packs M2 messages into batches for the relay web socket, so that a single web socket message
+ * carries many CAN frames instead of one. A batch is a sequence of frames, each made of a
+ * little endian 16 bit length followed by that many bytes of the message in the firmware
+ * layout. A batch is sent when adding a message would make it larger than the maximum size,
+ * when it holds the maximum number of messages, or when its oldest message has waited for the
+ * maximum latency, whichever comes first.
+ */
+public class RelayBatcher {
+    public static final int FRAME_HEADER_SIZE = 2;
+
+    /** Where the batches go. */
+    public interface Sink {
+        /** Send a batch, returning false if it couldn't be sent. */
+        boolean send(byte[] batch, int offset, int length, int count);
+    }
+
+    private final Sink sink;
+    private final ScheduledExecutorService scheduler;
+    private final int maxSize;
+    private final int maxCount;
+    private final long maxLatencyMs;
+
+    private final byte[] buffer;
+    private int size;
+    private int count;
+    private long firstMessageTime;
+    private boolean deadlineScheduled;
+
+    private long batchCount;
+    private long droppedCount;
+
+    private final Runnable deadlineTask = this::onDeadline;
+
+    public RelayBatcher(Sink sink, ScheduledExecutorService scheduler, int maxSize, int maxCount, long maxLatencyMs) {
+        this.sink = sink;
+        this.scheduler = scheduler;
+        this.maxSize = Math.max(maxSize, FRAME_HEADER_SIZE + M2Message.MAX_SIZE);
+        this.maxCount = Math.max(maxCount, 1);
+        this.maxLatencyMs = Math.max(maxLatencyMs, 1);
+        this.buffer = new byte[this.maxSize];
+    }
+
+    /** Add a message to the current batch, sending it if it's full. */
+    public synchronized void add(M2Message message) {
+        int frameSize = FRAME_HEADER_SIZE + message.size();
+        if (size + frameSize > maxSize) {
+            flush();
+        }
+        buffer[size] = (byte) message.size();
+        buffer[size + 1] = (byte) (message.size() >> 8);
+        message.writeTo(buffer, size + FRAME_HEADER_SIZE);
+        size += frameSize;
+        count++;
+        if (count == 1) {
+            firstMessageTime = System.nanoTime();
+            if (!deadlineScheduled) {
+                deadlineScheduled = true;
+                scheduler.schedule(deadlineTask, maxLatencyMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (count >= maxCount || size + FRAME_HEADER_SIZE + M2Message.HEADER_SIZE > maxSize) {
+            flush();
+        }
+    }
+
+    /** Send the current batch now, if there is one. */
+    public synchronized void flush() {
+        if (count == 0) {
+            return;
+        }
+        if (sink.send(buffer, 0, size, count)) {
+            batchCount++;
+        } else {
+            droppedCount += count;
+        }
+        size = 0;
+        count = 0;
+    }
+
+    /** Discard the current batch without sending it. */
+    public synchronized void clear() {
+        droppedCount += count;
+        size = 0;
+        count = 0;
+    }
+
+    private synchronized void onDeadline() {
+        deadlineScheduled = false;
+        if (count == 0) {
+            return;
+        }
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstMessageTime);
+        if (waitedMs >= maxLatencyMs) {
+            flush();
+        } else {
+            deadlineScheduled = true;
+            scheduler.schedule(deadlineTask, maxLatencyMs - waitedMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** The number of batches sent. */
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    /** The number of messages discarded because their batch couldn't be sent. */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,199 @@
+package com.onyx.m2.relay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.Buffer;
+
+/**
+ * A compact encoding of the batches sent to the relay web socket. Every batch is encoded on
+ * its own, so any batch can be decoded without the ones before it (which is what lets batches
+ * be resent after a reconnect). Within a batch, every frame is encoded as:
+ *
+ *   [ts delta][key][length][masks][changed bytes]
+ *
+ * The ts delta is the difference with the timestamp of the previous frame of the batch (or
+ * with 0 for the first one), zigzag encoded, as an unsigned varint (7 bits per byte, little
+ * endian, high bit set on all bytes but the last). The key is a varint index into the
+ * dictionary of the (bus, id) seen in the batch, plus 1; a key of 0 adds a new (bus, id) to
+ * the dictionary, and is followed by an 8 bit bus and a little endian 16 bit id. The length is
+ * the varint data length. The data is XORed with the previous data of the same (bus, id) in
+ * the batch if it had the same length (or with zeros otherwise), and for every 8 bytes of the
+ * result, a mask byte has bit i set if byte i isn't zero. The masks are followed by the non
+ * zero bytes only.
+ *
+ * As most frames repeat their id a few ms later with only a few bytes changed, a frame usually
+ * shrinks from 18 bytes (with its length prefix) to 5 or 6.
+ */
+public class RelayCodec {
+    private static final int BUS_COUNT = M2Message.BUS_COUNT;
+    private static final int ID_COUNT = M2Message.ID_COUNT;
+    private static final int SLOT_COUNT = BUS_COUNT * ID_COUNT;
+
+    /** Encodes batches, reusing its tables from one batch to the next. */
+    public static class Encoder {
+        // the dictionary index of every (bus, id), valid if its generation is the current one
+        private final int[] dictionary = new int[SLOT_COUNT];
+        private final int[] generations = new int[SLOT_COUNT];
+        private final byte[][] previous = new byte[SLOT_COUNT][];
+        private final int[] previousLength = new int[SLOT_COUNT];
+        private int generation;
+
+        /** Encode the records (in the RelayBatcher layout) of a batch. */
+        public synchronized void encode(byte[] records, int offset, int length, Buffer out) {
+            generation++;
+            int dictionarySize = 0;
+            int previousTs = 0;
+            int position = offset;
+            int end = offset + length;
+            while (position < end) {
+                int size = (records[position] & 0xFF) | ((records[position + 1] & 0xFF) << 8);
+                int message = position + RelayBatcher.FRAME_HEADER_SIZE;
+                position = message + size;
+
+                int ts = (records[message] & 0xFF) | ((records[message + 1] & 0xFF) << 8)
+                    | ((records[message + 2] & 0xFF) << 16) | ((records[message + 3] & 0xFF) << 24);
+                int bus = records[message + 4] & 0xFF;
+                int id = (records[message + 5] & 0xFF) | ((records[message + 6] & 0xFF) << 8);
+                int dataLength = records[message + 7] & 0xFF;
+                int data = message + M2Message.HEADER_SIZE;
+
+                writeVarint(out, zigzag(ts - previousTs));
+                previousTs = ts;
+
+                int slot = bus < BUS_COUNT && id < ID_COUNT ? bus * ID_COUNT + id : -1;
+                byte[] reference = null;
+                if (slot >= 0 && generations[slot] == generation) {
+                    writeVarint(out, dictionary[slot] + 1);
+                    if (previousLength[slot] == dataLength) {
+                        reference = previous[slot];
+                    }
+                } else {
+                    writeVarint(out, 0);
+                    out.writeByte(bus);
+                    out.writeShortLe(id);
+                    if (slot >= 0) {
+                        generations[slot] = generation;
+                        dictionary[slot] = dictionarySize;
+                    }
+                    dictionarySize++;
+                }
+
+                writeVarint(out, dataLength);
+                writeXor(out, records, data, dataLength, reference);
+
+                if (slot >= 0) {
+                    if (previous[slot] == null || previous[slot].length < dataLength) {
+                        previous[slot] = new byte[Math.max(dataLength, 8)];
+                    }
+                    System.arraycopy(records, data, previous[slot], 0, dataLength);
+                    previousLength[slot] = dataLength;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode a batch back into records in the RelayBatcher layout. This is the reference for
+     * the server side implementation.
+     */
+    public static void decode(byte[] encoded, int offset, int length, Buffer out) {
+        List<int[]> keys = new ArrayList<>();
+        List<byte[]> previous = new ArrayList<>();
+        int[] position = { offset };
+        int end = offset + length;
+        int previousTs = 0;
+        while (position[0] < end) {
+            int ts = previousTs + unzigzag(readVarint(encoded, position));
+            previousTs = ts;
+
+            int key = readVarint(encoded, position);
+            int index;
+            if (key == 0) {
+                int bus = encoded[position[0]] & 0xFF;
+                int id = (encoded[position[0] + 1] & 0xFF) | ((encoded[position[0] + 2] & 0xFF) << 8);
+                position[0] += 3;
+                index = keys.size();
+                keys.add(new int[] { bus, id });
+                previous.add(null);
+            } else {
+                index = key - 1;
+            }
+
+            int dataLength = readVarint(encoded, position);
+            byte[] reference = previous.get(index);
+            byte[] data = new byte[dataLength];
+            int maskCount = (dataLength + 7) / 8;
+            int bytes = position[0] + maskCount;
+            for (int i = 0; i < dataLength; i++) {
+                int mask = encoded[position[0] + i / 8];
+                byte value = (mask & (1 << (i % 8))) != 0 ? encoded[bytes++] : 0;
+                if (reference != null && reference.length == dataLength) {
+                    value ^= reference[i];
+                }
+                data[i] = value;
+            }
+            position[0] = bytes;
+            previous.set(index, data);
+
+            int[] busId = keys.get(index);
+            out.writeShortLe(M2Message.HEADER_SIZE + dataLength);
+            out.writeIntLe(ts);
+            out.writeByte(busId[0]);
+            out.writeShortLe(busId[1]);
+            out.writeByte(dataLength);
+            out.write(data);
+        }
+    }
+
+    private static void writeXor(Buffer out, byte[] records, int data, int dataLength, byte[] reference) {
+        for (int block = 0; block < dataLength; block += 8) {
+            int blockEnd = Math.min(block + 8, dataLength);
+            int mask = 0;
+            for (int i = block; i < blockEnd; i++) {
+                if (xor(records, data, i, reference) != 0) {
+                    mask |= 1 << (i - block);
+                }
+            }
+            out.writeByte(mask);
+        }
+        for (int i = 0; i < dataLength; i++) {
+            byte value = xor(records, data, i, reference);
+            if (value != 0) {
+                out.writeByte(value);
+            }
+        }
+    }
+
+    private static byte xor(byte[] records, int data, int i, byte[] reference) {
+        return reference != null ? (byte) (records[data + i] ^ reference[i]) : records[data + i];
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(Buffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(byte[] encoded, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = encoded[position[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,94 @@
+package com.onyx.m2.relay;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suppresses the messages whose data hasn't changed since the last one relayed with the same
+ * (bus, id), as many ids repeat the same value at 10 to 100 Hz. An unchanged message is still
+ * relayed once the keyframe interval has elapsed since the last one, so the server can tell that
+ * the id is alive. The last value relayed is kept in a per id buffer allocated the first time the
+ * id is seen, so filtering doesn't allocate in the steady state.
+ */
+public class RelayDeltaFilter {
+    private static final int BUS_COUNT = M2Message.BUS_COUNT;
+    private static final int ID_COUNT = M2Message.ID_COUNT;
+    private static final int SLOT_COUNT = BUS_COUNT * ID_COUNT;
+
+    private final long keyframeIntervalNanos;
+    private final byte[][] last = new byte[SLOT_COUNT][];
+    private final int[] lastSize = new int[SLOT_COUNT];
+    private final long[] lastRelayTime = new long[SLOT_COUNT];
+
+    private long suppressedCount;
+    private long savedBytes;
+
+    public RelayDeltaFilter(long keyframeIntervalMs) {
+        this.keyframeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(keyframeIntervalMs);
+    }
+
+    /**
+     * Check if the message should be relayed, i.e. if its data changed or the keyframe interval
+     * elapsed, recording it as the last value relayed if so.
+     */
+    public synchronized boolean filter(M2Message message) {
+        int bus = message.getBus();
+        int id = message.getId();
+        if (bus >= BUS_COUNT || id >= ID_COUNT) {
+            return true;
+        }
+        int slot = bus * ID_COUNT + id;
+        long now = message.getReceiveTime() != 0 ? message.getReceiveTime() : System.nanoTime();
+        int size = message.size();
+        byte[] buffer = last[slot];
+        if (lastSize[slot] == size && now - lastRelayTime[slot] < keyframeIntervalNanos && isSameData(buffer, message)) {
+            suppressedCount++;
+            savedBytes += size;
+            return false;
+        }
+        if (buffer == null || buffer.length < size) {
+            buffer = new byte[size];
+            last[slot] = buffer;
+        }
+        message.writeTo(buffer, 0);
+        lastSize[slot] = size;
+        lastRelayTime[slot] = now;
+        return true;
+    }
+
+    private static boolean isSameData(byte[] buffer, M2Message message) {
+        for (int i = 0; i < message.getLength(); i++) {
+            if ((buffer[M2Message.HEADER_SIZE + i] & 0xFF) != message.getData(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forget the last value of the message's id, which was let through but not relayed after
+     * all, so the next message of the id is relayed.
+     */
+    public synchronized void forget(M2Message message) {
+        int bus = message.getBus();
+        int id = message.getId();
+        if (bus < BUS_COUNT && id < ID_COUNT) {
+            lastSize[bus * ID_COUNT + id] = 0;
+        }
+    }
+
+    /** Forget the last values, so the next message of every id is relayed. */
+    public synchronized void reset() {
+        Arrays.fill(lastSize, 0);
+    }
+
+    /** The number of unchanged messages that weren't relayed. */
+    public synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    /** The number of bytes (in the firmware layout) of the messages that weren't relayed. */
+    public synchronized long getSavedBytes() {
+        return savedBytes;
+    }
+}
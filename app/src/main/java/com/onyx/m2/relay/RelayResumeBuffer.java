@@ -0,0 +1,143 @@
+package com.onyx.m2.relay;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * Assigns sequence numbers to the relayed messages, and keeps the batches sent to the server
+ * until it acknowledges them, so they can be sent again after a reconnect. Every message gets
+ * the next sequence number (starting at 1), and a batch is prefixed with the little endian 64
+ * bit sequence number of its first message; the messages that follow are numbered
+ * consecutively. An acknowledgement of sequence number n means the server has every message up
+ * to and including n, which frees the batches holding them.
+ *
+ * The buffer is bounded; if the server stops acknowledging, the oldest batches are evicted and
+ * won't be sent again.
+ */
+public class RelayResumeBuffer {
+    private static final String TAG = "RelayResumeBuffer";
+    public static final int HEADER_SIZE = 8;
+
+    private static class Entry {
+        final long firstSequence;
+        final int count;
+        final ByteString payload;
+
+        Entry(long firstSequence, int count, ByteString payload) {
+            this.firstSequence = firstSequence;
+            this.count = count;
+            this.payload = payload;
+        }
+
+        long lastSequence() {
+            return firstSequence + count - 1;
+        }
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final long maxSize;
+    private long size;
+    private long nextSequence = 1;
+    private long acknowledged;
+    private long evictedCount;
+
+    public RelayResumeBuffer(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Number the records (in the RelayBatcher layout) and keep them until they're acknowledged.
+     * Returns the payload to send to the server, i.e. the records prefixed with the sequence
+     * number of the first one.
+     */
+    public synchronized ByteString add(byte[] records, int offset, int length) {
+        int count = countRecords(records, offset, length);
+        long firstSequence = nextSequence;
+        nextSequence += count;
+        ByteString payload = new Buffer()
+            .writeLongLe(firstSequence)
+            .write(records, offset, length)
+            .readByteString();
+        entries.add(new Entry(firstSequence, count, payload));
+        size += payload.size();
+        while (size > maxSize && entries.size() > 1) {
+            Entry evicted = entries.removeFirst();
+            size -= evicted.payload.size();
+            evictedCount += evicted.count;
+            Log.w(TAG, "Resume buffer is full, evicting messages " + evicted.firstSequence + " to " + evicted.lastSequence());
+        }
+        return payload;
+    }
+
+    /** Record that the server has every message up to and including the sequence number. */
+    public synchronized void acknowledge(long sequence) {
+        if (sequence <= acknowledged) {
+            return;
+        }
+        acknowledged = Math.min(sequence, nextSequence - 1);
+        while (!entries.isEmpty() && entries.peekFirst().lastSequence() <= acknowledged) {
+            size -= entries.removeFirst().payload.size();
+        }
+    }
+
+    /**
+     * Get the payloads to send again so the server has every message, in order. The first one
+     * is trimmed if the server already has some of its messages.
+     */
+    public synchronized List<ByteString> getUnacknowledged() {
+        List<ByteString> payloads = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            if (entry.firstSequence > acknowledged) {
+                payloads.add(entry.payload);
+            } else {
+                payloads.add(trim(entry, acknowledged + 1));
+            }
+        }
+        return payloads;
+    }
+
+    /** Build a payload with the messages of the entry starting at the sequence number. */
+    private static ByteString trim(Entry entry, long fromSequence) {
+        ByteString payload = entry.payload;
+        int position = HEADER_SIZE;
+        for (long sequence = entry.firstSequence; sequence < fromSequence; sequence++) {
+            position += RelayBatcher.FRAME_HEADER_SIZE + ((payload.getByte(position) & 0xFF) | ((payload.getByte(position + 1) & 0xFF) << 8));
+        }
+        return new Buffer()
+            .writeLongLe(fromSequence)
+            .write(payload.substring(position, payload.size()))
+            .readByteString();
+    }
+
+    private static int countRecords(byte[] records, int offset, int length) {
+        int count = 0;
+        int position = offset;
+        int end = offset + length;
+        while (position < end) {
+            position += RelayBatcher.FRAME_HEADER_SIZE + ((records[position] & 0xFF) | ((records[position + 1] & 0xFF) << 8));
+            count++;
+        }
+        return count;
+    }
+
+    /** The sequence number of the last message acknowledged by the server. */
+    public synchronized long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /** The sequence number that the next message will get. */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /** The number of messages evicted before the server acknowledged them. */
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+}
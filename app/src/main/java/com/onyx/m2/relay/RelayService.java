@@ -5,6 +5,7 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
@@ -23,10 +24,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.net.wifi.WifiManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.os.BatteryManager;
 import android.os.Binder;
-import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 import android.widget.Toast;
@@ -38,14 +41,24 @@ import androidx.preference.PreferenceManager;
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.jetbrains.annotations.NotNull;
-
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.UUID;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.OkHttpClient;
@@ -53,10 +66,10 @@ import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.WebSocket;
 import okhttp3.WebSocketListener;
+import okio.Buffer;
 import okio.ByteString;
 
 import static android.bluetooth.BluetoothGatt.CONNECTION_PRIORITY_HIGH;
-import static android.bluetooth.BluetoothGattCharacteristic.FORMAT_UINT8;
 
 public class RelayService extends Service {
     private static final String TAG = "RelayService";
@@ -87,31 +100,165 @@ public class RelayService extends Service {
         WEBSOCKET_NORMAL_CLOSURE_STATUS = 1000;
     }
 
+    // The state of the relay is owned by the control thread (see scheduler below): the GATT,
+    // web socket, network, and battery callbacks are all posted to it, so only that thread ever
+    // writes the state. The relay consumer reads what it needs from volatile fields, and owns
+    // the state of the data path (batcher, filters, and handover gap) itself, so the per message
+    // path takes no lock of the service.
+    private BluetoothAdapter bleAdapter;
     private BluetoothLeScanner bleScanner;
     private BluetoothGatt gattServer;
-    private BluetoothGattCharacteristic configCharacteristic;
-    private BluetoothGattCharacteristic relayCharacteristic;
-    private BluetoothGattCharacteristic commandCharacteristic;
-    private BluetoothGattCharacteristic messageCharacteristic;
+    private volatile BluetoothGattCharacteristic configCharacteristic;
+    private volatile BluetoothGattCharacteristic relayCharacteristic;
+    private volatile BluetoothGattCharacteristic commandCharacteristic;
+    private volatile BluetoothGattCharacteristic messageCharacteristic;
+
+    private GattScheduler gattScheduler;
+
+    // the messages the M2 transmits, as requested by the server and the local consumers; only
+    // the messages the server asked for are relayed
+    private final M2MessageFlags messageFlags = new M2MessageFlags(this::onM2Command);
+    private final M2MessageFlags.Consumer serverFlags = messageFlags.register("server");
+
+    // catches a message stream or a web socket that stalls while still connected (see
+    // ConnectionWatchdog)
+    private static final long WATCHDOG_INTERVAL_MS = 250;
+    private final ConnectionWatchdog watchdog = new ConnectionWatchdog(messageFlags, this::recoverMessageStream);
+    private ScheduledFuture<?> watchdogHandle;
+
+    // a larger MTU lets the M2 pack several messages in a single notification
+    private static final int M2_MTU = 517;
+    private volatile int bleMtu;
+
+    // the connection priority follows the demand on the link (see ConnectionPriorityController)
+    private static final int PRIORITY_BALANCED_RATE = 20;
+    private static final int PRIORITY_HIGH_RATE = 200;
+    private static final long PRIORITY_HOLD_TIME_MS = 10000;
+    private final ConnectionPriorityController connectionPriority = new ConnectionPriorityController(
+        PRIORITY_BALANCED_RATE, PRIORITY_HIGH_RATE, PRIORITY_HOLD_TIME_MS);
+    private boolean gattConnected;
+    // the services are being discovered again by the watchdog, on a connection that is set up
+    private boolean refreshingGatt;
+
+    // reconnecting goes straight to the last M2 (see connectM2); the time to connect and to the
+    // first relayed message are measured from the start of every connection attempt, the latter
+    // by the relay consumer when it sees the start time change
+    private static final String M2_ADDRESS_KEY = "m2_address";
+    private static final long FAST_CONNECT_TIMEOUT_MS = 5000;
+    private boolean gattDirect;
+    private boolean scanning;
+    private ScheduledFuture<?> fastConnectTimeoutHandle;
+    private volatile long connectStartTime;
+    private long relayedConnectStartTime;
+    private volatile long lastConnectTimeMs;
+    private volatile long lastFirstMessageTimeMs;
+
+    // incoming messages are decoded straight into the ring, and consumed by the relay and
+    // any other consumer (e.g. the instrument cluster) on their own threads
+    private static final int MESSAGE_RING_SIZE = 4096;
+    private final M2RingBuffer messageRing = new M2RingBuffer(MESSAGE_RING_SIZE);
+    private M2RingBuffer.Consumer relayConsumer;
+    private final byte[] relayBuffer = new byte[M2Message.MAX_SIZE];
+
+    // last value requests are answered from the cache when the values are fresh enough, which
+    // saves the round trip to the M2 (and the BLE bandwidth it takes)
+    private static final long LAST_VALUE_MAX_AGE_NS = TimeUnit.SECONDS.toNanos(1);
+    private final M2LastValueCache lastValueCache = new M2LastValueCache();
+
+    // latency of the messages from the time they're received over BLE to the time they reach
+    // each stage of the pipeline: published to the ring, dispatched to the relay consumer,
+    // enqueued on the web socket, and delivered to the instrument cluster web view
+    public static final int LATENCY_RECEIVE = 0;
+    public static final int LATENCY_DISPATCH = 1;
+    public static final int LATENCY_ENQUEUE = 2;
+    public static final int LATENCY_DELIVERY = 3;
+    private final LatencyHistogram[] latencyHistograms = {
+        new LatencyHistogram("receive"),
+        new LatencyHistogram("dispatch"),
+        new LatencyHistogram("enqueue"),
+        new LatencyHistogram("delivery")
+    };
 
-    private Queue<byte[]> commandQueue;
-    private Queue<String> configQueue;
+    // message counts per (bus, id), with a recorder for each thread counting messages
+    private final M2MessageMetrics messageMetrics = new M2MessageMetrics();
+    private final M2MessageMetrics.Recorder receiveRecorder = messageMetrics.getRecorder("receive");
+    private final M2MessageMetrics.Recorder relayRecorder = messageMetrics.getRecorder("relay");
+    private ScheduledFuture<?> statsUpdaterHandle;
 
     private static final int WS_STATE_OPEN = 1;
     private static final int WS_STATE_CLOSED = 2;
 
     private OkHttpClient webClient;
-    private WebSocket webSocket;
-    private int webSocketState = WS_STATE_CLOSED;
+    private volatile WebSocket webSocket;
+    private volatile int webSocketState = WS_STATE_CLOSED;
     private int webSocketDesiredState = WS_STATE_CLOSED;
     private String webSocketHostname;
     private String webSocketPin;
     private int webSocketMsgRate;
-    private int webSocketMsgCount;
-    private Handler webSocketMsgCountHandler;
-    boolean webSocketMessagesEnabled;
-
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private volatile M2MessageMetrics.Snapshot metricsSnapshot;
+    private volatile boolean webSocketBatching;
+    private volatile RelayBatcher relayBatcher;
+    private volatile RelayCodec.Encoder relayEncoder;
+
+    // in delta mode, messages that repeat the last value relayed for their id are only sent at
+    // the keyframe interval
+    private volatile RelayDeltaFilter relayDeltaFilter;
+
+    // the rate at which the server gets every id, with the latest value of the ids that go
+    // faster held back until their interval elapses (see M2RateLimiter)
+    private final M2RateLimiter relayRateLimiter = new M2RateLimiter();
+
+    // when the web socket can't keep up, messages are coalesced, then dropped, then spooled, as
+    // the queue of the web socket grows (see RelayBackpressure)
+    private static final int QUEUE_COALESCE_WATERMARK_KB = 256;
+    private static final int QUEUE_DROP_WATERMARK_KB = 1024;
+    private static final int QUEUE_SPOOL_WATERMARK_KB = 4096;
+    private volatile RelayBackpressure webSocketBackpressure = new RelayBackpressure(
+        QUEUE_COALESCE_WATERMARK_KB * 1024L, QUEUE_DROP_WATERMARK_KB * 1024L, QUEUE_SPOOL_WATERMARK_KB * 1024L);
+    private final M2MessageCoalescer backpressureCoalescer = new M2MessageCoalescer();
+    private boolean backpressureSpooling;
+
+    // with the resume protocol, batches are numbered and kept until the server acknowledges
+    // them, so a reconnect picks up exactly where the server left off
+    private static final long RESUME_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final String RESUME_ACK_HEADER = "X-Relay-Ack";
+    private final String relaySession = UUID.randomUUID().toString();
+    private volatile boolean webSocketResume;
+    private volatile RelayResumeBuffer resumeBuffer;
+
+    // messages received while the web socket is down are spooled to disk, and drained once
+    // it's back up at a limited rate, so that catching up doesn't starve the live messages
+    private static final long SPOOL_SEGMENT_SIZE = 1024 * 1024;
+    private static final int SPOOL_DRAIN_INTERVAL_MS = 100;
+    private RelaySpool relaySpool;
+    private int spoolDrainRate;
+    private ScheduledFuture<?> spoolDrainHandle;
+    private final byte[] spoolDrainBuffer = new byte[8 * RelaySpool.MAX_RECORD_SIZE];
+
+    // local clients (e.g. a laptop on the hotspot) get the messages straight from the phone
+    private static final int LOCAL_SERVER_BUFFER_SIZE = 4096;
+    private static final int LOCAL_SERVER_BIND_INTERVAL_S = 5;
+    private volatile LocalRelayServer localServer;
+    private M2RingBuffer.Consumer localServerConsumer;
+    private ScheduledFuture<?> localServerBindHandle;
+
+    // handover of the web socket from LTE to wifi; the duration is the time it took to open the
+    // wifi web socket, and the gap is the time between the last message relayed on the LTE web
+    // socket and the first one relayed on the wifi one, which the relay consumer measures when
+    // it sees the handover count change
+    private ConnectivityManager connectivityManager;
+    private WebSocket handoverSocket;
+    private volatile boolean webSocketOnWifi;
+    private long handoverStartTime;
+    private volatile long handoverSwitchRelayTime;
+    private volatile long lastRelayTime;
+    private volatile int handoverCount;
+    private int relayedHandoverCount;
+    private volatile long lastHandoverDurationMs;
+    private volatile long lastHandoverGapMs;
+
+    // the control thread, which owns the state of the relay, and runs its timers
+    private final ScheduledExecutorService scheduler = new ControlThreadExecutor();
 
     private IBinder binder = new RelayBinder();
     public class RelayBinder extends Binder {
@@ -135,27 +282,27 @@ public class RelayService extends Service {
         return inHolder;
     }
 
+    // updated every second with a snapshot of every latency stage, in stage order
+    private MutableLiveData<LatencyHistogram.Snapshot[]> latency;
+    public MutableLiveData<LatencyHistogram.Snapshot[]> getLatency() {
+        return latency;
+    }
+
+    // updated every second with a snapshot of the message metrics
+    private MutableLiveData<M2MessageMetrics.Snapshot> metrics;
+    public MutableLiveData<M2MessageMetrics.Snapshot> getMetrics() {
+        return metrics;
+    }
+
     // We need to listen for wifi coming up because by default, the os will happily continue to
-    // service the web socket using the LTE interface even wifi becomes available. So, we'll
-    // cycle the ws when we detect wifi coming up.
-    private BroadcastReceiver wifiBroadcastReceiver = new BroadcastReceiver() {
+    // service the web socket using the LTE interface even wifi becomes available. So, when wifi
+    // comes up, we open a second web socket bound to it, and switch relaying over to it once
+    // it's open, before closing the LTE one (i.e. make before break).
+    private final ConnectivityManager.NetworkCallback wifiNetworkCallback = new ConnectivityManager.NetworkCallback() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            Log.d(TAG, "Wifi broadcast receive");
-            String action = intent.getAction();
-            if (action != null && action.equals(WifiManager.WIFI_STATE_CHANGED_ACTION)) {
-                Log.d(TAG, "Wifi state changed");
-                int wifiState = intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE, WifiManager.WIFI_STATE_UNKNOWN);
-                if (wifiState == WifiManager.WIFI_STATE_ENABLED) {
-                    Log.d(TAG, "Wifi state enabled");
-                    if (webSocketState == WS_STATE_OPEN) {
-                        Log.i(TAG, "Scheduling cycling web socket connection in 5s");
-                        scheduler.schedule(() -> {
-                            webSocket.close(WEBSOCKET_NORMAL_CLOSURE_STATUS, "Switching to wifi");
-                        }, 5, TimeUnit.SECONDS);
-                    }
-                }
-            }
+        public void onAvailable(@NotNull Network network) {
+            Log.d(TAG, "Wifi network available");
+            scheduler.execute(() -> startWebSocketHandover(network));
         }
     };
 
@@ -169,6 +316,10 @@ public class RelayService extends Service {
         @Override
         public void onReceive(Context context, Intent intent) {
             Log.v(TAG, "Battery broadcast receive");
+            scheduler.execute(() -> onBatteryChanged(intent));
+        }
+
+        private void onBatteryChanged(Intent intent) {
             String action = intent.getAction();
             if (action != null) {
                 if (action.equals(Intent.ACTION_POWER_CONNECTED)) {
@@ -219,12 +370,15 @@ public class RelayService extends Service {
         Log.d(TAG, "Create, thread id: " + Thread.currentThread().getId());
         final BluetoothManager btManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
         if (btManager != null) {
-            bleScanner = btManager.getAdapter().getBluetoothLeScanner();
+            bleAdapter = btManager.getAdapter();
+            bleScanner = bleAdapter.getBluetoothLeScanner();
         }
 
         bleConnected = new MutableLiveData<>(false);
         webSocketConnected = new MutableLiveData<>(false);
         inHolder = new MutableLiveData<>();
+        latency = new MutableLiveData<>();
+        metrics = new MutableLiveData<>();
         inHolder.observeForever(value -> {
             Log.d(TAG, "InHolder onChanged");
             if (value) {
@@ -234,8 +388,7 @@ public class RelayService extends Service {
             }
         });
 
-        commandQueue = new LinkedList<>();
-        configQueue = new LinkedList<>();
+        gattScheduler = new GattScheduler(scheduler);
 
         webClient = new OkHttpClient.Builder()
             .pingInterval(2, TimeUnit.SECONDS)
@@ -243,22 +396,21 @@ public class RelayService extends Service {
 
         createNotificationChannels();
 
-        IntentFilter wifiIntentFilter = new IntentFilter();
-        wifiIntentFilter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
-        registerReceiver(wifiBroadcastReceiver, wifiIntentFilter);
-
-        webSocketMsgCountHandler = new Handler();
-        webSocketMsgCountHandler.postDelayed(new Runnable(){
-            public void run(){
-                int prevWebSocketMsgRate = webSocketMsgRate;
-                webSocketMsgRate = webSocketMsgCount;
-                webSocketMsgCount = 0;
-                if (webSocketMsgRate != prevWebSocketMsgRate) {
-                    updateServiceNotification();
-                }
-                webSocketMsgCountHandler.postDelayed(this, 1000);
-            }
-        }, 1000);
+        connectivityManager = getSystemService(ConnectivityManager.class);
+        connectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+            .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+            .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+            .build(), wifiNetworkCallback);
+
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        if (settings.getBoolean("server_spool", true)) {
+            long spoolMaxSize = getIntPreference(settings, "server_spool_max_size", 64) * 1024L * 1024L;
+            relaySpool = new RelaySpool(new File(getFilesDir(), "spool"), SPOOL_SEGMENT_SIZE, spoolMaxSize);
+            spoolDrainRate = getIntPreference(settings, "server_spool_drain_rate", 64) * 1024;
+        }
+        if (settings.getBoolean("local_server", false)) {
+            startLocalServer(getIntPreference(settings, "local_server_port", 8080), settings.getString("server_pin", ""));
+        }
 
         IntentFilter batteryIntentFilter = new IntentFilter();
         batteryIntentFilter.addAction(Intent.ACTION_POWER_CONNECTED);
@@ -267,6 +419,10 @@ public class RelayService extends Service {
         registerReceiver(batteryBroadcastReceiver, batteryIntentFilter);
 
         EventBus.getDefault().register(this);
+        relayConsumer = messageRing.addConsumer("relay", this::relayMessage, M2RingBuffer.WaitStrategy.BLOCKING, true);
+        statsUpdaterHandle = scheduler.scheduleAtFixedRate(this::updateStats, 1, 1, TimeUnit.SECONDS);
+        watchdogHandle = scheduler.scheduleAtFixedRate(this::checkConnections,
+            WATCHDOG_INTERVAL_MS, WATCHDOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
 
         Toast.makeText(this, "Onyx Relay Started", Toast.LENGTH_LONG).show();
     }
@@ -275,35 +431,128 @@ public class RelayService extends Service {
         Log.d(TAG, "Destroy, thread id: " + Thread.currentThread().getId());
         Toast.makeText(this, "Onyx Relay Stopped", Toast.LENGTH_LONG).show();
 
-        webSocketDesiredState = WS_STATE_CLOSED;
-        if (webSocket != null) {
-            webSocket.close(WEBSOCKET_NORMAL_CLOSURE_STATUS, "Service destroyed");
-            setWebSocketState(WS_STATE_CLOSED, false);
-        }
+        connectivityManager.unregisterNetworkCallback(wifiNetworkCallback);
+        unregisterReceiver(batteryBroadcastReceiver);
+        EventBus.getDefault().unregister(this);
+        messageRing.removeConsumer(relayConsumer);
+        stopLocalServer();
+
+        scheduler.execute(() -> {
+            statsUpdaterHandle.cancel(false);
+            watchdogHandle.cancel(false);
+            webSocketDesiredState = WS_STATE_CLOSED;
+            cancelWebSocketHandover();
+            if (webSocket != null) {
+                webSocket.close(WEBSOCKET_NORMAL_CLOSURE_STATUS, "Service destroyed");
+                setWebSocketState(WS_STATE_CLOSED, false);
+            }
 
-        if (gattServer != null) {
-            gattServer.close();
-            setBleConnected(false, false);
-        }
+            stopScan();
+            cancelFastConnectTimeout();
+            gattScheduler.stop();
+            if (gattServer != null) {
+                gattServer.close();
+                gattServer = null;
+                setBleConnected(false, false);
+            }
 
-        unregisterReceiver(wifiBroadcastReceiver);
-        unregisterReceiver(batteryBroadcastReceiver);
+            stopSpoolDrain();
+            if (relaySpool != null) {
+                relaySpool.close();
+            }
+        });
+    }
 
-        EventBus.getDefault().unregister(this);
+    /**
+     * Dump the state of the relay, including the message counts of every (bus, id), with:
+     *
+     *   adb shell dumpsys activity service com.onyx.m2.relay/.RelayService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("BLE connected: " + bleConnected.getValue() + ", MTU: " + bleMtu);
+        writer.println("Last connection: " + lastConnectTimeMs + " ms to connect, " + lastFirstMessageTimeMs + " ms to the first relayed message");
+        writer.println("Web socket connected: " + webSocketConnected.getValue() + ", on wifi: " + webSocketOnWifi);
+        writer.println("Web socket handovers to wifi: " + handoverCount + ", last took " + lastHandoverDurationMs
+            + " ms, with a " + lastHandoverGapMs + " ms gap in the relayed messages");
+        messageRing.dump(writer);
+        LatencyHistogram.Snapshot[] snapshots = latency.getValue();
+        if (snapshots != null) {
+            for (LatencyHistogram.Snapshot snapshot : snapshots) {
+                writer.println("Latency " + snapshot);
+            }
+        }
+        M2MessageMetrics.Snapshot snapshot = metricsSnapshot;
+        if (snapshot != null) {
+            writer.println("Rates: " + snapshot);
+        }
+        RelayDeltaFilter deltaFilter = relayDeltaFilter;
+        if (deltaFilter != null) {
+            writer.println("Delta mode suppressed: " + deltaFilter.getSuppressedCount() + " messages, " + deltaFilter.getSavedBytes() + " bytes");
+        }
+        writer.println("Rate limited: " + relayRateLimiter.getLimitedCount() + " messages");
+        connectionPriority.dump(writer);
+        gattScheduler.dump(writer);
+        watchdog.dump(writer);
+        webSocketBackpressure.dump(writer);
+        if (localServer != null) {
+            localServer.dump(writer);
+        }
+        messageFlags.dump(writer);
+        messageMetrics.dump(writer);
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "Start command, thread id: " + Thread.currentThread().getId());
+        startForeground(SERVICE_NOTIFICATION_ID, createServiceNotification());
+        scheduler.execute(() -> {
+            applySettings(PreferenceManager.getDefaultSharedPreferences(this));
+            connectM2();
+        });
+        return START_STICKY;
+    }
 
-        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+    private void applySettings(SharedPreferences settings) {
         webSocketHostname = settings.getString("server_hostname", "");
         webSocketPin = settings.getString("server_pin", "");
         Log.d(TAG, String.format("Web service configuration, hostname: %s, pin: %s", webSocketHostname, webSocketPin));
-
-        startForeground(SERVICE_NOTIFICATION_ID, createServiceNotification());
-        scan();
-        return START_STICKY;
+        webSocketBatching = settings.getBoolean("server_batching", false);
+        if (webSocketBatching) {
+            relayBatcher = new RelayBatcher(this::sendBatch, scheduler,
+                getIntPreference(settings, "server_batch_max_size", 4096),
+                getIntPreference(settings, "server_batch_max_count", 256),
+                getIntPreference(settings, "server_batch_max_latency", 50));
+        }
+        if (webSocketBatching && settings.getBoolean("server_compact", false)) {
+            relayEncoder = new RelayCodec.Encoder();
+        } else {
+            relayEncoder = null;
+        }
+        if (settings.getBoolean("server_delta", false)) {
+            relayDeltaFilter = new RelayDeltaFilter(getIntPreference(settings, "server_delta_keyframe_interval", 1000));
+        } else {
+            relayDeltaFilter = null;
+        }
+        relayRateLimiter.setMaxRate(getIntPreference(settings, "server_max_rate", 0));
+        if (!relayRateLimiter.setMaxRates(settings.getString("server_max_rates", ""))) {
+            Log.w(TAG, "Invalid message rates, some are ignored");
+        }
+        RelayBackpressure backpressure = new RelayBackpressure(
+            getIntPreference(settings, "server_queue_coalesce_watermark", QUEUE_COALESCE_WATERMARK_KB) * 1024L,
+            getIntPreference(settings, "server_queue_drop_watermark", QUEUE_DROP_WATERMARK_KB) * 1024L,
+            getIntPreference(settings, "server_queue_spool_watermark", QUEUE_SPOOL_WATERMARK_KB) * 1024L);
+        if (!backpressure.setPriorities(settings.getString("server_priority_ids", ""))) {
+            Log.w(TAG, "Invalid priority ids, some are ignored");
+        }
+        webSocketBackpressure = backpressure;
+        connectionPriority.setRates(
+            getIntPreference(settings, "ble_priority_balanced_rate", PRIORITY_BALANCED_RATE),
+            getIntPreference(settings, "ble_priority_high_rate", PRIORITY_HIGH_RATE));
+        webSocketResume = webSocketBatching && settings.getBoolean("server_resume", false);
+        if (webSocketResume && resumeBuffer == null) {
+            resumeBuffer = new RelayResumeBuffer(RESUME_BUFFER_SIZE);
+        }
     }
 
     @Override
@@ -326,10 +575,291 @@ public class RelayService extends Service {
 
     @Subscribe
     public void onM2Command(M2Command command) {
-        commandCharacteristic.setValue(command.data);
-        if (!gattServer.writeCharacteristic(commandCharacteristic)) {
-            Log.d(TAG, "Queueing command because writing failed");
-            commandQueue.add(command.data);
+        if (commandCharacteristic == null) {
+            Log.w(TAG, "Ignoring command while M2 is not connected");
+            return;
+        }
+        gattScheduler.writeCommand(commandCharacteristic, command.data);
+    }
+
+    /**
+     * Register a consumer of the M2 messages, to set the flags of the messages it wants the M2
+     * to transmit (see M2MessageFlags). The consumer must be unregistered when it's done.
+     */
+    public M2MessageFlags.Consumer registerMessageFlags(String name) {
+        return messageFlags.register(name);
+    }
+
+    /** The message metrics, for consumers to get a recorder from. */
+    public M2MessageMetrics getMessageMetrics() {
+        return messageMetrics;
+    }
+
+    /**
+     * Add a consumer of the incoming M2 messages, see M2RingBuffer. It skips messages if it falls
+     * behind, as only the relay is critical.
+     */
+    public M2RingBuffer.Consumer addMessageConsumer(String name, M2RingBuffer.Handler handler, M2RingBuffer.WaitStrategy waitStrategy) {
+        return messageRing.addConsumer(name, handler, waitStrategy, false);
+    }
+
+    public void removeMessageConsumer(M2RingBuffer.Consumer consumer) {
+        messageRing.removeConsumer(consumer);
+    }
+
+    /**
+     * Record the latency of a message reaching a stage, given the time it was received. Messages
+     * that weren't received over BLE (i.e. with a receive time of 0) are ignored. This can be
+     * called from any thread.
+     */
+    public void recordLatency(int stage, long receiveTime) {
+        if (receiveTime != 0) {
+            latencyHistograms[stage].record(System.nanoTime() - receiveTime);
+        }
+    }
+
+    private void updateStats() {
+        updateLatency();
+        updateMetrics();
+        updateConnectionPriority();
+    }
+
+    private void updateConnectionPriority() {
+        M2MessageMetrics.Snapshot snapshot = metricsSnapshot;
+        if (!gattConnected || snapshot == null) {
+            return;
+        }
+        int priority = connectionPriority.update(snapshot.rates[M2MessageMetrics.RECEIVED],
+            gattScheduler.getQueueDepth(), System.nanoTime());
+        if (priority >= 0 && !gattServer.requestConnectionPriority(priority)) {
+            Log.w(TAG, "Failed to request connection priority " + priority);
+        }
+    }
+
+    private void updateLatency() {
+        LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[latencyHistograms.length];
+        for (int i = 0; i < snapshots.length; i++) {
+            snapshots[i] = latencyHistograms[i].snapshot();
+            if (snapshots[i].count > 0 && Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Latency " + snapshots[i]);
+            }
+        }
+        latency.postValue(snapshots);
+    }
+
+    private void updateMetrics() {
+        M2MessageMetrics.Snapshot snapshot = messageMetrics.snapshot();
+        metricsSnapshot = snapshot;
+        metrics.postValue(snapshot);
+        int previousRate = webSocketMsgRate;
+        webSocketMsgRate = snapshot.rates[M2MessageMetrics.RELAYED];
+        if (webSocketMsgRate != previousRate) {
+            updateServiceNotification();
+        }
+    }
+
+    /**
+     * Relay an incoming message to the web socket. This runs on the relay consumer thread, and
+     * the message is only valid during the call.
+     */
+    private void relayMessage(M2Message message, boolean endOfBatch) {
+        recordLatency(LATENCY_DISPATCH, message.getReceiveTime());
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, String.format("m2 -> ts: %d, bus: %d, id: %d", message.getTs(), message.getBus(), message.getId()));
+        }
+        lastValueCache.update(message);
+        if (serverFlags.isTransmitted(message.getBus(), message.getId())
+            && relayRateLimiter.offer(message, System.nanoTime())) {
+            sendMessage(message);
+        }
+        // messages held back by the rate limiter go out at the end of a batch, so they wait
+        // for the next message at worst, which at CAN rates is a few ms
+        if (endOfBatch) {
+            relayRateLimiter.drain(System.nanoTime(), this::sendMessage);
+            drainBackpressureCoalescer();
+        }
+    }
+
+    /** Send a message to the web socket, or spool it while the web socket is down. */
+    private void sendMessage(M2Message message) {
+        RelayDeltaFilter deltaFilter = relayDeltaFilter;
+        if (deltaFilter != null && !deltaFilter.filter(message)) {
+            return;
+        }
+        WebSocket ws = webSocket;
+        if (ws == null || webSocketState == WS_STATE_CLOSED) {
+            spoolMessage(message);
+            return;
+        }
+        RelayBackpressure backpressure = webSocketBackpressure;
+        int level = backpressure.update(ws.queueSize());
+        if (level < RelayBackpressure.LEVEL_SPOOL) {
+            backpressureSpooling = false;
+        }
+        if (level >= RelayBackpressure.LEVEL_SPOOL && relaySpool != null) {
+            spoolMessage(message);
+            // the drain is owned by the control thread, so it's only asked once per congestion
+            if (!backpressureSpooling) {
+                backpressureSpooling = true;
+                scheduler.execute(this::startSpoolDrain);
+            }
+        } else if (level >= RelayBackpressure.LEVEL_DROP && !backpressure.isPriority(message.getBus(), message.getId())) {
+            dropMessage(message);
+        } else if (level >= RelayBackpressure.LEVEL_COALESCE) {
+            if (backpressureCoalescer.offer(message)) {
+                relayRecorder.increment(M2MessageMetrics.COALESCED, message);
+            }
+        } else {
+            enqueueMessage(ws, message);
+        }
+    }
+
+    /** Send the messages coalesced under backpressure, once the web socket has caught up. */
+    private void drainBackpressureCoalescer() {
+        if (backpressureCoalescer.isEmpty()) {
+            return;
+        }
+        WebSocket ws = webSocket;
+        if (ws == null || webSocketState == WS_STATE_CLOSED) {
+            backpressureCoalescer.drain(this::spoolMessage);
+        } else if (webSocketBackpressure.update(ws.queueSize()) == RelayBackpressure.LEVEL_NORMAL) {
+            backpressureCoalescer.drain(message -> enqueueMessage(ws, message));
+        }
+    }
+
+    private void spoolMessage(M2Message message) {
+        if (relaySpool != null) {
+            relaySpool.append(message);
+            relayRecorder.increment(M2MessageMetrics.SPOOLED, message);
+        } else {
+            Log.w(TAG, "Incoming message not sent to web socket that is down");
+            dropMessage(message);
+        }
+    }
+
+    private void dropMessage(M2Message message) {
+        // the delta filter took the message as relayed, so the next one of the id mustn't be
+        // suppressed as unchanged
+        RelayDeltaFilter deltaFilter = relayDeltaFilter;
+        if (deltaFilter != null) {
+            deltaFilter.forget(message);
+        }
+        relayRecorder.increment(M2MessageMetrics.DROPPED, message);
+    }
+
+    private void enqueueMessage(WebSocket ws, M2Message message) {
+        if (webSocketBatching) {
+            relayBatcher.add(message);
+        } else {
+            message.writeTo(relayBuffer, 0);
+            if (!ws.send(ByteString.of(relayBuffer, 0, message.size()))) {
+                spoolMessage(message);
+                return;
+            }
+        }
+        recordLatency(LATENCY_ENQUEUE, message.getReceiveTime());
+        relayRecorder.increment(M2MessageMetrics.RELAYED, message);
+        long now = System.nanoTime();
+        if (relayedHandoverCount != handoverCount) {
+            relayedHandoverCount = handoverCount;
+            lastHandoverGapMs = TimeUnit.NANOSECONDS.toMillis(now - handoverSwitchRelayTime);
+            Log.i(TAG, "Web socket handover gap: " + lastHandoverGapMs + " ms");
+        }
+        lastRelayTime = now;
+        long startTime = connectStartTime;
+        if (relayedConnectStartTime != startTime) {
+            relayedConnectStartTime = startTime;
+            lastFirstMessageTimeMs = TimeUnit.NANOSECONDS.toMillis(now - startTime);
+            Log.i(TAG, "First message relayed " + lastFirstMessageTimeMs + " ms after connecting started");
+        }
+    }
+
+    private void startLocalServer(int port, String pin) {
+        if (pin.isEmpty()) {
+            // local clients can send commands to the M2, which no one on the hotspot should do without the pin
+            Log.w(TAG, "Not starting local server, no server PIN set");
+            return;
+        }
+        LocalRelayServer server = new LocalRelayServer(port, pin, LOCAL_SERVER_BUFFER_SIZE, messageFlags, this::onLocalCommand);
+        try {
+            server.start();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Failed to start local server on port " + port + ": " + e.getMessage());
+            return;
+        }
+        localServer = server;
+        localServerConsumer = messageRing.addConsumer("local server",
+            (message, endOfBatch) -> server.publish(message), M2RingBuffer.WaitStrategy.BLOCKING, false);
+        // the hotspot can be turned on and off at any time
+        localServerBindHandle = scheduler.scheduleWithFixedDelay(server::bindInterfaces,
+            LOCAL_SERVER_BIND_INTERVAL_S, LOCAL_SERVER_BIND_INTERVAL_S, TimeUnit.SECONDS);
+    }
+
+    /** A local client sent a command, which is answered like the ones from the server. */
+    private void onLocalCommand(M2Command command, M2LastValueCache.Visitor reply) {
+        if (!serveLastValueCommand(command, reply)) {
+            EventBus.getDefault().post(command);
+        }
+    }
+
+    private void stopLocalServer() {
+        if (localServer != null) {
+            localServerBindHandle.cancel(false);
+            messageRing.removeConsumer(localServerConsumer);
+            localServer.stop();
+            localServer = null;
+        }
+    }
+
+    /**
+     * Answer a last value command from the cache, passing the cached messages to the visitor.
+     * Values that aren't in the cache or are stale are requested from the M2, which sends them
+     * as regular messages, as is every value of a request for all of them. Returns false if the
+     * command isn't a last value command, in which case it's up to the caller to send it.
+     */
+    public boolean serveLastValueCommand(M2Command command, M2LastValueCache.Visitor visitor) {
+        if (command.cmd == M2Command.CMDID_GET_MSG_LAST_VALUE && command.data.length >= 4) {
+            int bus = command.data[1] & 0xFF;
+            int id = (command.data[2] & 0xFF) | ((command.data[3] & 0xFF) << 8);
+            M2Message message = new M2Message();
+            if (lastValueCache.get(bus, id, LAST_VALUE_MAX_AGE_NS, message)) {
+                visitor.visit(message);
+            } else {
+                EventBus.getDefault().post(command);
+            }
+            return true;
+        }
+        if (command.cmd == M2Command.CMDID_GET_ALL_MSG_LAST_VALUE) {
+            int[] freshCount = { 0 };
+            int staleCount = lastValueCache.visitFresh(LAST_VALUE_MAX_AGE_NS,
+                message -> {
+                    freshCount[0]++;
+                    visitor.visit(message);
+                },
+                null);
+            Log.d(TAG, String.format("Served %d last values from cache, %d are stale", freshCount[0], staleCount));
+
+            // the cache only knows the ids the phone has seen, so the M2 still sends everything
+            // it has, the fresh values only arriving early
+            EventBus.getDefault().post(command);
+            return true;
+        }
+        return false;
+    }
+
+    /** Send a message served from the last value cache to the web socket. */
+    private void relayCachedMessage(M2Message message) {
+        WebSocket ws = webSocket;
+        if (ws == null || webSocketState != WS_STATE_OPEN) {
+            return;
+        }
+        if (webSocketBatching) {
+            relayBatcher.add(message);
+        } else {
+            byte[] data = new byte[message.size()];
+            message.writeTo(data, 0);
+            ws.send(ByteString.of(data, 0, data.length));
         }
     }
 
@@ -350,12 +880,141 @@ public class RelayService extends Service {
             Log.d(TAG, "Scan result, callback type: " + callbackType + ", thread id: " + Thread.currentThread().getId());
             BluetoothDevice device = result.getDevice();
             Log.d(TAG, String.format("From device: %s, address: %s", device.getName(), device.getAddress()));
-            bleScanner.stopScan(this);
-            gattServer = device.connectGatt(RelayService.this, true, new M2GattCallback());
+            scheduler.execute(() -> onM2Found(device));
         }
     };
 
-    private void scan() {
+    /**
+     * Connect to the M2. With the address of the last M2, a direct connection is attempted right
+     * away, which completes as soon as it advertises, while a low latency scan looks for the M2
+     * in case it's a different one. If neither connects in time, a background connection to the
+     * last M2 takes over, which the system completes whenever the M2 shows up, along with a
+     * balanced scan.
+     */
+    private void connectM2() {
+        if (gattServer != null || scanning || bleScanner == null) {
+            return;
+        }
+        connectStartTime = System.nanoTime();
+        String address = PreferenceManager.getDefaultSharedPreferences(this).getString(M2_ADDRESS_KEY, "");
+        if (BluetoothAdapter.checkBluetoothAddress(address)) {
+            Log.i(TAG, "Connecting directly to M2 at " + address);
+            connectGatt(bleAdapter.getRemoteDevice(address), false);
+        }
+        startScan(ScanSettings.SCAN_MODE_LOW_LATENCY);
+        fastConnectTimeoutHandle = scheduler.schedule(this::onFastConnectTimeout, FAST_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void onFastConnectTimeout() {
+        fastConnectTimeoutHandle = null;
+        if (gattConnected) {
+            return;
+        }
+        Log.i(TAG, "M2 not connected in " + FAST_CONNECT_TIMEOUT_MS + " ms, falling back to background connection");
+        connectInBackground();
+        if (scanning) {
+            stopScan();
+            startScan(ScanSettings.SCAN_MODE_BALANCED);
+        }
+    }
+
+    /** Replace a pending direct connection with a background one. */
+    private void connectInBackground() {
+        if (gattServer != null && gattDirect) {
+            BluetoothDevice device = gattServer.getDevice();
+            gattServer.close();
+            connectGatt(device, true);
+        }
+    }
+
+    private void onM2Disconnected() {
+        gattConnected = false;
+        refreshingGatt = false;
+        watchdog.onDisconnected();
+        gattScheduler.stop();
+        webSocketDesiredState = WS_STATE_CLOSED;
+        cancelWebSocketHandover();
+        if (webSocket != null) {
+            webSocket.close(WEBSOCKET_NORMAL_CLOSURE_STATUS, "M2 disconnected");
+        }
+        setWebSocketState(WS_STATE_CLOSED, false);
+        setBleConnected(false, true);
+        // a direct connection isn't resumed by the system, so start over, which also
+        // measures the time it takes to get back
+        gattServer.close();
+        gattServer = null;
+        connectM2();
+    }
+
+    private void checkConnections() {
+        long now = System.nanoTime();
+        watchdog.check(now);
+        WebSocket ws = webSocket;
+        if (ws != null && webSocketState == WS_STATE_OPEN && watchdog.checkWebSocket(ws.queueSize(), now)) {
+            // fails the web socket, which reconnects it
+            ws.cancel();
+        }
+    }
+
+    /** Run a recovery step of the watchdog, on the control thread. */
+    private void recoverMessageStream(int step) {
+        if (!gattConnected) {
+            return;
+        }
+        switch (step) {
+            case ConnectionWatchdog.STEP_ENABLE_NOTIFICATIONS:
+                enableCharacteristicNotification(messageCharacteristic);
+                break;
+            case ConnectionWatchdog.STEP_REFRESH_GATT:
+                // the services are discovered again, only to get fresh characteristics
+                refreshGattCache();
+                refreshingGatt = gattServer.discoverServices();
+                break;
+            case ConnectionWatchdog.STEP_RECONNECT:
+                gattServer.disconnect();
+                onM2Disconnected();
+                break;
+        }
+    }
+
+    /** Drop the services Android cached for the M2, with the hidden BluetoothGatt.refresh(). */
+    private void refreshGattCache() {
+        try {
+            BluetoothGatt.class.getMethod("refresh").invoke(gattServer);
+        }
+        catch (ReflectiveOperationException e) {
+            Log.w(TAG, "Failed to refresh GATT cache: " + e.getMessage());
+        }
+    }
+
+    private void cancelFastConnectTimeout() {
+        if (fastConnectTimeoutHandle != null) {
+            fastConnectTimeoutHandle.cancel(false);
+            fastConnectTimeoutHandle = null;
+        }
+    }
+
+    private void onM2Found(BluetoothDevice device) {
+        stopScan();
+        if (gattConnected) {
+            return;
+        }
+        if (gattServer != null) {
+            // a direct connection to the M2 found completes now that it advertises
+            if (gattDirect && gattServer.getDevice().getAddress().equals(device.getAddress())) {
+                return;
+            }
+            gattServer.close();
+        }
+        connectGatt(device, false);
+    }
+
+    private void connectGatt(BluetoothDevice device, boolean autoConnect) {
+        gattDirect = !autoConnect;
+        gattServer = device.connectGatt(this, autoConnect, new M2GattCallback(), BluetoothDevice.TRANSPORT_LE);
+    }
+
+    private void startScan(int scanMode) {
         Log.d(TAG, "Scanning for M2");
 
         List<ScanFilter> deviceFilters = Collections.singletonList(new ScanFilter.Builder()
@@ -363,35 +1022,95 @@ public class RelayService extends Service {
                 .build());
 
         ScanSettings settings = new ScanSettings.Builder()
-                .setScanMode(ScanSettings.SCAN_MODE_BALANCED)
+                .setScanMode(scanMode)
                 .build();
 
         bleScanner.startScan(deviceFilters, settings, scanCallback);
+        scanning = true;
+    }
+
+    private void stopScan() {
+        if (scanning) {
+            bleScanner.stopScan(scanCallback);
+            scanning = false;
+        }
+    }
+
+    /**
+     * The executor of the control thread, which logs the exceptions of the tasks; they would
+     * otherwise end up in futures no one looks at, silently aborting what the task was doing
+     * (or cancelling the timer, for a periodic task).
+     */
+    private static class ControlThreadExecutor extends ScheduledThreadPoolExecutor {
+        ControlThreadExecutor() {
+            super(1, runnable -> new Thread(runnable, "relay control"));
+        }
+
+        @Override
+        protected void afterExecute(Runnable runnable, Throwable throwable) {
+            super.afterExecute(runnable, throwable);
+            if (throwable == null && runnable instanceof Future && ((Future<?>) runnable).isDone()) {
+                try {
+                    ((Future<?>) runnable).get();
+                }
+                catch (ExecutionException e) {
+                    throwable = e.getCause();
+                }
+                catch (CancellationException | InterruptedException e) {
+                    // cancelled timers aren't errors
+                }
+            }
+            if (throwable != null) {
+                Log.e(TAG, "Control thread task failed", throwable);
+            }
+        }
     }
 
     class M2GattCallback extends BluetoothGattCallback {
 
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            scheduler.execute(() -> handleConnectionStateChange(gatt, status, newState));
+        }
+
+        private void handleConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (gatt != gattServer) {
+                // a connection that was replaced, e.g. by the M2 found by the scan
+                return;
+            }
             if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.i(TAG, "Connected to M2 GATT server");
+                lastConnectTimeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStartTime);
+                Log.i(TAG, "Connected to M2 GATT server in " + lastConnectTimeMs + " ms");
                 Log.i(TAG, "Attempting to start service discovery");
+                stopScan();
+                cancelFastConnectTimeout();
+                gattConnected = true;
                 gattServer.requestConnectionPriority(CONNECTION_PRIORITY_HIGH);
+                connectionPriority.reset(ConnectionPriorityController.MODE_HIGH, System.nanoTime());
                 gattServer.discoverServices();
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.i(TAG, "Disconnected from M2 GATT server");
-                webSocketDesiredState = WS_STATE_CLOSED;
-                if (webSocket != null) {
-                    webSocket.close(WEBSOCKET_NORMAL_CLOSURE_STATUS, "M2 disconnected");
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED && !gattConnected) {
+                // the direct connection failed, so leave it to the background connection
+                Log.i(TAG, "Failed to connect to M2 GATT server, status: " + status);
+                if (gattDirect) {
+                    cancelFastConnectTimeout();
+                    onFastConnectTimeout();
                 }
-                setWebSocketState(WS_STATE_CLOSED, false);
-                setBleConnected(false, true);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.i(TAG, "Disconnected from M2 GATT server, status: " + status);
+                onM2Disconnected();
             }
         }
 
         @Override
         // New services discovered
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            scheduler.execute(() -> handleServicesDiscovered(gatt, status));
+        }
+
+        private void handleServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (gatt != gattServer) {
+                return;
+            }
             Log.d(TAG, String.format("Services discovered , status: %d", status));
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 List<BluetoothGattService> services = gatt.getServices();
@@ -411,19 +1130,46 @@ public class RelayService extends Service {
 
                     if (service.getUuid().equals(M2_SERVICE_UUID)) {
                         Log.d(TAG, "Found Onyx M2 service, thread id: " + Thread.currentThread().getId());
-
                         configCharacteristic = service.getCharacteristic(M2_CONFIG_CHARACTERISTIC_UUID);
                         relayCharacteristic = service.getCharacteristic(M2_RELAY_CHARACTERISTIC_UUID);
                         commandCharacteristic = service.getCharacteristic(M2_COMMAND_CHARACTERISTIC_UUID);
                         messageCharacteristic = service.getCharacteristic(M2_MESSAGE_CHARACTERISTIC_UUID);
 
-                        setBleConnected(true, true);
-                        enableCharacteristicNotification(messageCharacteristic);
-                        webSocketDesiredState = WS_STATE_OPEN;
-                        connectWebSocket();
+                        if (refreshingGatt) {
+                            onGattRefreshed();
+                        } else {
+                            onM2ServiceDiscovered(gatt);
+                        }
                     }
                 }
             }
+            refreshingGatt = false;
+        }
+
+        /** Set up a newly connected M2. */
+        private void onM2ServiceDiscovered(BluetoothGatt gatt) {
+            PreferenceManager.getDefaultSharedPreferences(RelayService.this).edit()
+                .putString(M2_ADDRESS_KEY, gatt.getDevice().getAddress())
+                .apply();
+
+            gattScheduler.start(gatt);
+            gattScheduler.requestMtu(M2_MTU);
+            setBleConnected(true, true);
+            enableCharacteristicNotification(messageCharacteristic);
+            watchdog.onConnected(System.nanoTime());
+            messageFlags.resync();
+            webSocketDesiredState = WS_STATE_OPEN;
+            connectWebSocket();
+        }
+
+        /**
+         * The watchdog refreshed the GATT cache of a connection that is set up, so only the
+         * notifications of the fresh message characteristic need to be enabled again.
+         */
+        private void onGattRefreshed() {
+            Log.i(TAG, "GATT refreshed, enabling notifications again");
+            enableCharacteristicNotification(messageCharacteristic);
+            watchdog.onConnected(System.nanoTime());
         }
 
         @Override
@@ -433,80 +1179,142 @@ public class RelayService extends Service {
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            Log.d(TAG, "Characteristic " + characteristic.getUuid() + " changed");
             if (!characteristic.equals(messageCharacteristic)) {
-                Log.w(TAG, "Ignoring non-message characteristic change");
+                Log.w(TAG, "Ignoring non-message characteristic " + characteristic.getUuid() + " change");
                 return;
             }
+
+            // the value is read in place and decoded into a preallocated slot of the ring, so
+            // nothing is allocated per message here
+            long receiveTime = System.nanoTime();
             byte[] data = characteristic.getValue();
             if (data == null || data.length == 0) {
                 Log.w(TAG, "Ignoring empty characteristic value");
                 return;
             }
-            M2Message message = new M2Message(data);
-            Log.i(TAG, String.format("m2 -> ts: %d, bus: %d, id: %d", message.ts, message.bus, message.id));
-            EventBus.getDefault().post(message);
-            if (webSocketMessagesEnabled) {
-                if (webSocketState == WS_STATE_CLOSED) {
-                    Log.w(TAG, "Incoming message not sent to web socket that is down");
-                    return;
+
+            // with a large enough MTU, the M2 packs several messages back to back in a single
+            // notification; each message header holds its data length, so they are split in
+            // place, and a notification with a single message (older firmware or small MTU)
+            // is simply the degenerate case
+            int offset = 0;
+            while (data.length - offset >= M2Message.HEADER_SIZE) {
+                int size = M2Message.HEADER_SIZE + (data[offset + 7] & 0xFF);
+                int bus = data[offset + 4] & 0xFF;
+                int id = (data[offset + 5] & 0xFF) | ((data[offset + 6] & 0xFF) << 8);
+                receiveRecorder.increment(M2MessageMetrics.RECEIVED, bus, id);
+                watchdog.onMessage(bus, id, receiveTime);
+                if (messageRing.publish(data, offset, data.length - offset, receiveTime)) {
+                    recordLatency(LATENCY_RECEIVE, receiveTime);
+                } else {
+                    receiveRecorder.increment(M2MessageMetrics.DROPPED, bus, id);
                 }
-                webSocket.send(ByteString.of(data));
-                webSocketMsgCount++;
+                offset += size;
             }
         }
 
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Log.i(TAG, String.format("MTU changed to %d, status: %d", mtu, status));
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                bleMtu = mtu;
+            }
+            gattScheduler.onMtuChanged(status);
+        }
+
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             Log.d(TAG, "Characteristic " + characteristic.getUuid() + " written with status " + status);
-            if (!configQueue.isEmpty()) {
-                Log.d(TAG, "Writing next queued config");
-                configCharacteristic.setValue(configQueue.remove());
-                gattServer.writeCharacteristic(configCharacteristic);
-            }
-            else if (!commandQueue.isEmpty()) {
-                Log.d(TAG, "Writing next queued command");
-                commandCharacteristic.setValue(commandQueue.remove());
-                gattServer.writeCharacteristic(commandCharacteristic);
-            }
+            gattScheduler.onCharacteristicWrite(characteristic, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            Log.d(TAG, "Descriptor " + descriptor.getUuid() + " written with status " + status);
+            gattScheduler.onDescriptorWrite(descriptor, status);
         }
     }
 
+    // OkHttp calls the listener on its reader threads, so every event is posted to the control
+    // thread, in order
     WebSocketListener webSocketListener = new WebSocketListener() {
         @Override
         public void onOpen(@NotNull WebSocket ws, @NotNull Response response) {
-            Log.i(TAG, "Web socket is open");
-            setWebSocketState(WS_STATE_OPEN, true);
+            scheduler.execute(() -> handleOpen(ws, response));
         }
 
         @Override
         public void onMessage(@NotNull WebSocket ws, @NotNull String text) {
-            Log.i(TAG, "m2 <- " + text + " (unsupported)");
+            scheduler.execute(() -> handleMessage(text));
+        }
+
+        @Override
+        public void onMessage(@NotNull WebSocket ws, @NotNull ByteString bytes) {
+            scheduler.execute(() -> handleMessage(bytes));
+        }
+
+        @Override
+        public void onClosing(@NotNull WebSocket ws, int code, @NotNull String reason) {
+            scheduler.execute(() -> handleClosing(ws, code, reason));
+        }
+
+        @Override
+        public void onFailure(@NotNull WebSocket ws, @NotNull Throwable t, Response response) {
+            scheduler.execute(() -> handleFailure(ws, t));
         }
 
         @Override
-        public void onMessage(@NotNull WebSocket ws, ByteString bytes) {
+        public void onClosed(@NotNull WebSocket ws, int code, @NotNull String reason) {
+            scheduler.execute(() -> handleClosed(ws, code, reason));
+        }
+
+        private void handleOpen(WebSocket ws, Response response) {
+            watchdog.onWebSocketOpen(System.nanoTime());
+            if (ws == handoverSocket) {
+                completeWebSocketHandover(ws, response);
+                return;
+            }
+            Log.i(TAG, "Web socket is open");
+            webSocketOnWifi = isActiveNetworkWifi();
+            if (webSocketResume) {
+                resumeWebSocket(ws, response);
+            }
+            setWebSocketState(WS_STATE_OPEN, true);
+        }
+
+        // The only text message is the server acknowledging the messages it has received
+        // when using the resume protocol, i.e. {"ack": <sequence>}
+        private void handleMessage(String text) {
+            if (webSocketResume) {
+                try {
+                    JSONObject json = new JSONObject(text);
+                    if (json.has("ack")) {
+                        resumeBuffer.acknowledge(json.getLong("ack"));
+                        return;
+                    }
+                }
+                catch (JSONException e) {
+                    Log.w(TAG, "Invalid text message: " + text);
+                }
+            }
+            Log.i(TAG, "m2 <- " + text + " (unsupported)");
+        }
+
+        private void handleMessage(ByteString bytes) {
             Log.i(TAG, String.format("m2 <- (%d) %s", bytes.size(), bytes.hex()));
             byte[] data = bytes.toByteArray();
 
-            // temporary patch: if the server is disabling all messages (because all local
-            // its clients have stopped, set a flag to save bandwidth but don't actually
-            // forward to M2 because direct interface still needs these; only way to do this
-            // properly is to manage clientIds in the firmware
+            // the server's flags are only its share of the flags written to the M2, so e.g.
+            // disabling all messages doesn't stop the ones local consumers still need
             M2Command command = new M2Command(data);
-            if (command.isDisableAllMessages()) {
-                webSocketMessagesEnabled = false;
-            }
-            else {
-                webSocketMessagesEnabled = true;
+            if (!serverFlags.apply(command)
+                && !serveLastValueCommand(command, RelayService.this::relayCachedMessage)) {
                 EventBus.getDefault().post(command);
             }
-
         }
 
         // Remote is closing the connection
-        @Override
-        public void onClosing(@NotNull WebSocket ws, int code, @NotNull String reason) {
+        private void handleClosing(WebSocket ws, int code, String reason) {
             Log.i(TAG, "Web socket is closing: " + code + " / " + reason);
             if (ws == webSocket) {
                 webSocket.close(WEBSOCKET_NORMAL_CLOSURE_STATUS, "Server disconnected");
@@ -515,10 +1323,13 @@ public class RelayService extends Service {
         }
 
         // Error or timeout on the connection
-        @Override
-        public void onFailure(@NotNull WebSocket ws, Throwable t, Response response) {
+        private void handleFailure(WebSocket ws, Throwable t) {
             Log.i(TAG, "Web socket error: " + t.getMessage());
-            if (ws == webSocket) {
+            if (ws == handoverSocket) {
+                Log.w(TAG, "Web socket handover failed, staying on current network");
+                handoverSocket = null;
+            }
+            else if (ws == webSocket) {
                 webSocket.close(WEBSOCKET_NORMAL_CLOSURE_STATUS, t.getMessage());
                 webSocket = null;
                 setWebSocketState(WS_STATE_CLOSED, true);
@@ -526,8 +1337,7 @@ public class RelayService extends Service {
             }
         }
 
-        @Override
-        public void onClosed(@NotNull WebSocket ws, int code, @NotNull String reason) {
+        private void handleClosed(WebSocket ws, int code, String reason) {
             Log.d(TAG, "Web socket closed: " + code + " / " + reason);
             if (ws == webSocket) {
                 webSocket = null;
@@ -541,22 +1351,251 @@ public class RelayService extends Service {
 
     private void connectWebSocket() {
         Log.d(TAG, "Connect web socket");
+        if (handoverSocket != null) {
+            Log.d(TAG, "Web socket handover in progress, it will take over");
+            return;
+        }
         if (webSocketState == WS_STATE_CLOSED && webSocketDesiredState == WS_STATE_OPEN) {
             Log.d(TAG, String.format("Web socket config, hostname: %s, pin: %s", webSocketHostname, webSocketPin));
             if (!webSocketHostname.isEmpty() && !webSocketPin.isEmpty()) {
-                String url = String.format("wss://%s/relay?pin=%s", webSocketHostname, webSocketPin);
-                Request request = new Request.Builder().url(url).build();
-                webSocket = webClient.newWebSocket(request, webSocketListener);
+                webSocket = webClient.newWebSocket(createRelayRequest(), webSocketListener);
+            }
+        }
+    }
+
+    private Request createRelayRequest() {
+        String url = String.format("wss://%s/relay?pin=%s", webSocketHostname, webSocketPin);
+        if (webSocketBatching) {
+            url += "&batch=1";
+        }
+        if (relayEncoder != null) {
+            url += "&codec=1";
+        }
+        if (webSocketResume) {
+            url += String.format("&session=%s&ack=%d", relaySession, resumeBuffer.getAcknowledged());
+        }
+        return new Request.Builder().url(url).build();
+    }
+
+    private boolean isActiveNetworkWifi() {
+        NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(connectivityManager.getActiveNetwork());
+        return capabilities != null && capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI);
+    }
+
+    /**
+     * Open a second web socket bound to the wifi network, which takes over from the current one
+     * once it's open.
+     */
+    private void startWebSocketHandover(Network network) {
+        if (webSocketState != WS_STATE_OPEN || webSocketOnWifi || handoverSocket != null) {
+            return;
+        }
+        Log.i(TAG, "Starting web socket handover to wifi");
+        handoverStartTime = System.nanoTime();
+        OkHttpClient wifiClient = webClient.newBuilder()
+            .socketFactory(network.getSocketFactory())
+            .dns(hostname -> Arrays.asList(network.getAllByName(hostname)))
+            .build();
+        handoverSocket = wifiClient.newWebSocket(createRelayRequest(), webSocketListener);
+    }
+
+    /**
+     * Switch relaying over to the wifi web socket, and close the previous one. Closing is
+     * graceful, so the messages already queued on the previous web socket are still sent.
+     */
+    private void completeWebSocketHandover(WebSocket ws, Response response) {
+        if (webSocketResume) {
+            resumeWebSocket(ws, response);
+        }
+        WebSocket previous = webSocket;
+        // the relay consumer measures the gap when it sees the count change, so the switch time
+        // is published first
+        handoverSwitchRelayTime = lastRelayTime;
+        webSocket = ws;
+        handoverSocket = null;
+        webSocketOnWifi = true;
+        handoverCount++;
+        lastHandoverDurationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - handoverStartTime);
+        Log.i(TAG, "Web socket handover to wifi completed in " + lastHandoverDurationMs + " ms");
+        if (previous != null) {
+            previous.close(WEBSOCKET_NORMAL_CLOSURE_STATUS, "Switching to wifi");
+        }
+        if (webSocketState != WS_STATE_OPEN) {
+            setWebSocketState(WS_STATE_OPEN, true);
+        }
+    }
+
+    private void cancelWebSocketHandover() {
+        if (handoverSocket != null) {
+            handoverSocket.cancel();
+            handoverSocket = null;
+        }
+    }
+
+    /**
+     * Send a batch of messages to the web socket, see RelayBatcher for the layout. If the web
+     * socket is down, the batch is spooled instead. This is called with the batcher locked.
+     */
+    private boolean sendBatch(byte[] batch, int offset, int length, int count) {
+        WebSocket ws = webSocket;
+        if (ws == null || webSocketState != WS_STATE_OPEN) {
+            if (relaySpool != null) {
+                relaySpool.appendRecords(batch, offset, length, count);
+                return true;
+            }
+            Log.w(TAG, "Batch of " + count + " messages not sent to web socket that is down");
+            return false;
+        }
+        if (sendRecords(ws, batch, offset, length)) {
+            return true;
+        }
+        // the web socket is failing; when resuming, the batch is resent from the resume buffer
+        // once reconnected, otherwise it's spooled
+        if (webSocketResume) {
+            return true;
+        }
+        if (relaySpool != null) {
+            relaySpool.appendRecords(batch, offset, length, count);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Send records in the batch layout to the web socket, numbering them first when using the
+     * resume protocol, and encoding them when using the compact encoding.
+     */
+    private boolean sendRecords(WebSocket ws, byte[] records, int offset, int length) {
+        if (webSocketResume) {
+            return ws.send(encodePayload(resumeBuffer.add(records, offset, length)));
+        }
+        RelayCodec.Encoder encoder = relayEncoder;
+        if (encoder != null) {
+            Buffer encoded = new Buffer();
+            encoder.encode(records, offset, length, encoded);
+            return ws.send(encoded.readByteString());
+        }
+        return ws.send(ByteString.of(records, offset, length));
+    }
+
+    /**
+     * Encode the records of a resume payload when using the compact encoding. The resume buffer
+     * keeps the records as is, so it can still trim them when resending, and a resent payload is
+     * simply encoded again.
+     */
+    private ByteString encodePayload(ByteString payload) {
+        RelayCodec.Encoder encoder = relayEncoder;
+        if (encoder == null) {
+            return payload;
+        }
+        byte[] records = payload.toByteArray();
+        Buffer encoded = new Buffer().write(records, 0, RelayResumeBuffer.HEADER_SIZE);
+        encoder.encode(records, RelayResumeBuffer.HEADER_SIZE, records.length - RelayResumeBuffer.HEADER_SIZE, encoded);
+        return encoded.readByteString();
+    }
+
+    /**
+     * Send the batches the server is missing on a newly opened web socket, before any other
+     * message. The server reports the last message it has in the handshake response; if it
+     * doesn't (e.g. it doesn't know the session), the last acknowledgement is used instead.
+     */
+    private void resumeWebSocket(WebSocket ws, Response response) {
+        String ack = response.header(RESUME_ACK_HEADER);
+        if (ack != null) {
+            try {
+                resumeBuffer.acknowledge(Long.parseLong(ack));
+            }
+            catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid resume acknowledgement: " + ack);
+            }
+        }
+        List<ByteString> payloads = resumeBuffer.getUnacknowledged();
+        Log.i(TAG, String.format("Resuming after message %d, resending %d batches",
+            resumeBuffer.getAcknowledged(), payloads.size()));
+        for (ByteString payload : payloads) {
+            ws.send(encodePayload(payload));
+        }
+    }
+
+    private void startSpoolDrain() {
+        if (relaySpool == null || relaySpool.isEmpty() || spoolDrainHandle != null) {
+            return;
+        }
+        Log.i(TAG, "Draining " + relaySpool.getSize() + " spooled bytes at " + spoolDrainRate + " bytes/sec");
+        spoolDrainHandle = scheduler.scheduleWithFixedDelay(this::drainSpool,
+            SPOOL_DRAIN_INTERVAL_MS, SPOOL_DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopSpoolDrain() {
+        if (spoolDrainHandle != null) {
+            spoolDrainHandle.cancel(false);
+            spoolDrainHandle = null;
+        }
+    }
+
+    /**
+     * Send the next slice of the spool to the web socket, limited to the drain rate. The
+     * spooled messages are sent interleaved with the live ones; the server orders them using
+     * their timestamps. Records the web socket refuses are put back in the spool.
+     */
+    private void drainSpool() {
+        WebSocket ws = webSocket;
+        if (ws == null || webSocketState != WS_STATE_OPEN) {
+            return;
+        }
+        if (webSocketBackpressure.update(ws.queueSize()) != RelayBackpressure.LEVEL_NORMAL) {
+            return;
+        }
+        int budget = Math.max(spoolDrainRate * SPOOL_DRAIN_INTERVAL_MS / 1000, RelaySpool.MAX_RECORD_SIZE);
+        while (budget > 0) {
+            int length = relaySpool.read(spoolDrainBuffer, 0, Math.min(budget, spoolDrainBuffer.length));
+            if (length == 0) {
+                Log.i(TAG, "Spool drained");
+                stopSpoolDrain();
+                return;
             }
+            if (webSocketBatching) {
+                // spooled records are already in the batch layout; when resuming, a batch that
+                // fails is resent from the resume buffer once reconnected
+                if (!sendRecords(ws, spoolDrainBuffer, 0, length) && !webSocketResume) {
+                    relaySpool.unread(length);
+                    return;
+                }
+            } else {
+                int position = 0;
+                while (position < length) {
+                    int size = (spoolDrainBuffer[position] & 0xFF) | ((spoolDrainBuffer[position + 1] & 0xFF) << 8);
+                    if (!ws.send(ByteString.of(spoolDrainBuffer, position + 2, size))) {
+                        relaySpool.unread(length - position);
+                        return;
+                    }
+                    position += 2 + size;
+                }
+            }
+            budget -= length;
         }
     }
 
     private void setWebSocketState(int state, boolean notify) {
         webSocketState = state;
+        if (state == WS_STATE_CLOSED) {
+            stopSpoolDrain();
+            if (relayBatcher != null) {
+                relayBatcher.flush();
+            }
+        } else {
+            // a new connection may be to a server that lost track of the last values, so
+            // every id starts over with a keyframe
+            RelayDeltaFilter deltaFilter = relayDeltaFilter;
+            if (deltaFilter != null) {
+                deltaFilter.reset();
+            }
+            startSpoolDrain();
+        }
         webSocketConnected.postValue(state == WS_STATE_OPEN);
-        if (notify && gattServer != null) {
-            relayCharacteristic.setValue(state == WS_STATE_OPEN ? 1 : 0, FORMAT_UINT8, 0);
-            gattServer.writeCharacteristic(relayCharacteristic);
+        if (notify && relayCharacteristic != null) {
+            gattScheduler.writeCharacteristic(GattScheduler.PRIORITY_CONTROL, relayCharacteristic,
+                new byte[] { (byte) (state == WS_STATE_OPEN ? 1 : 0) });
         }
         if (notify) {
             updateServiceNotification();
@@ -573,16 +1612,11 @@ public class RelayService extends Service {
     private void enableCharacteristicNotification(BluetoothGattCharacteristic characteristic) {
         gattServer.setCharacteristicNotification(characteristic, true);
         BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CHARACTERISTIC_UPDATE_NOTIFICATION_DESCRIPTOR_UUID);
-        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        gattServer.writeDescriptor(descriptor);
+        gattScheduler.writeDescriptor(GattScheduler.PRIORITY_CONTROL, descriptor, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
     }
 
     private void setConfig(String config) {
-        configCharacteristic.setValue(config);
-        if (!gattServer.writeCharacteristic(configCharacteristic)) {
-            Log.d(TAG, "Queueing config write: " + config);
-            configQueue.add(config);
-        }
+        gattScheduler.writeCharacteristic(GattScheduler.PRIORITY_CONFIG, configCharacteristic, config.getBytes(StandardCharsets.UTF_8));
     }
 
     public void syncConfig() {
@@ -592,6 +1626,11 @@ public class RelayService extends Service {
             return;
         }
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        scheduler.execute(() -> writeConfig(settings));
+        Toast.makeText(this, "Updating Onyx M2 Config", Toast.LENGTH_LONG).show();
+    }
+
+    private void writeConfig(SharedPreferences settings) {
         webSocketHostname = settings.getString("server_hostname", "");
         webSocketPin = settings.getString("server_pin", "");
         setConfig("SH=" + webSocketHostname);
@@ -605,7 +1644,16 @@ public class RelayService extends Service {
         setConfig("MS=" + settings.getString("mobile_wifi_ssid", ""));
         setConfig("MP=" + settings.getString("mobile_wifi_password", ""));
         setConfig("RESET");
-        Toast.makeText(this, "Updating Onyx M2 Config", Toast.LENGTH_LONG).show();
+    }
+
+    private static int getIntPreference(SharedPreferences settings, String key, int defaultValue) {
+        try {
+            return Integer.parseInt(settings.getString(key, Integer.toString(defaultValue)));
+        }
+        catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid value for preference " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
     }
 
     void createNotificationChannels() {
@@ -635,9 +1683,10 @@ public class RelayService extends Service {
         if (connected == null) {
             connected = false;
         }
-        if (webSocketMsgRate > 0) {
+        M2MessageMetrics.Snapshot snapshot = metricsSnapshot;
+        if (webSocketMsgRate > 0 && snapshot != null) {
             title = "Active";
-            text = "Relaying " + webSocketMsgRate + " msgs/sec";
+            text = String.format("Relaying %d of %d msgs/sec", webSocketMsgRate, snapshot.rates[M2MessageMetrics.RECEIVED]);
             colour = 0xFFC90000;
         } else if (!connected) {
             title = "Idle";
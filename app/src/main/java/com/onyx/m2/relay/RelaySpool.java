@@ -0,0 +1,362 @@
+package com.onyx.m2.relay;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * An append only store for the messages received while the relay web socket is down, so they
+ * can be forwarded to the server once it's back up. The spool is a sequence of segment files
+ * in a directory, each holding records made of a little endian 16 bit length followed by the
+ * message in the firmware layout (i.e. the same layout as a RelayBatcher batch). Appends are
+ * buffered in memory and written to the newest segment, which is rotated when it reaches the
+ * segment size. Reads start at the oldest segment, and segments are deleted once fully read.
+ * When the spool exceeds its maximum size, the oldest segment is evicted, so it's the oldest
+ * data that is lost when an outage outlasts the spool.
+ *
+ * Segments are left on disk when the spool is closed and picked up again when it's reopened,
+ * so spooled messages also survive the service being restarted.
+ */
+public class RelaySpool {
+    private static final String TAG = "RelaySpool";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".bin";
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int RECORD_HEADER_SIZE = 2;
+    public static final int MAX_RECORD_SIZE = RECORD_HEADER_SIZE + M2Message.MAX_SIZE;
+
+    private static class Segment {
+        final long index;
+        final File file;
+        long size;
+
+        Segment(long index, File file, long size) {
+            this.index = index;
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private final File directory;
+    private final long segmentSize;
+    private final long maxSize;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long totalSize;
+
+    private FileChannel writeChannel;
+    private final byte[] writeBuffer = new byte[WRITE_BUFFER_SIZE];
+    private final ByteBuffer writeByteBuffer = ByteBuffer.wrap(writeBuffer);
+    private int writeBufferSize;
+
+    private FileChannel readChannel;
+    private Segment readSegment;
+    private long readPosition;
+
+    private long spooledCount;
+    private long evictedSize;
+    private boolean failed;
+
+    public RelaySpool(File directory, long segmentSize, long maxSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = Math.max(maxSize, 2 * segmentSize);
+        open();
+    }
+
+    private void open() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            fail("Unable to create spool directory " + directory, null);
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long[] indexes = new long[files.length];
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    indexes[count++] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                }
+                catch (NumberFormatException e) {
+                    Log.w(TAG, "Ignoring unexpected file in spool: " + name);
+                }
+            }
+        }
+        Arrays.sort(indexes, 0, count);
+        for (int i = 0; i < count; i++) {
+            File file = segmentFile(indexes[i]);
+            segments.add(new Segment(indexes[i], file, file.length()));
+            totalSize += file.length();
+        }
+        if (totalSize > 0) {
+            Log.i(TAG, "Found " + totalSize + " bytes in " + segments.size() + " spooled segments");
+        }
+    }
+
+    private File segmentFile(long index) {
+        return new File(directory, SEGMENT_PREFIX + index + SEGMENT_SUFFIX);
+    }
+
+    /** Append a message to the spool. */
+    public synchronized void append(M2Message message) {
+        if (failed) {
+            return;
+        }
+        int recordSize = RECORD_HEADER_SIZE + message.size();
+        if (writeBufferSize + recordSize > WRITE_BUFFER_SIZE) {
+            flush();
+        }
+        writeBuffer[writeBufferSize] = (byte) message.size();
+        writeBuffer[writeBufferSize + 1] = (byte) (message.size() >> 8);
+        message.writeTo(writeBuffer, writeBufferSize + RECORD_HEADER_SIZE);
+        writeBufferSize += recordSize;
+        totalSize += recordSize;
+        spooledCount++;
+        enforceLimits();
+    }
+
+    /**
+     * Append records that are already in the spool layout, e.g. a batch that couldn't be sent.
+     * The records must be complete.
+     */
+    public synchronized void appendRecords(byte[] records, int offset, int length, int count) {
+        if (failed) {
+            return;
+        }
+        if (writeBufferSize + length > WRITE_BUFFER_SIZE) {
+            flush();
+        }
+        if (length > WRITE_BUFFER_SIZE) {
+            write(ByteBuffer.wrap(records, offset, length));
+        } else {
+            System.arraycopy(records, offset, writeBuffer, writeBufferSize, length);
+            writeBufferSize += length;
+        }
+        totalSize += length;
+        spooledCount += count;
+        enforceLimits();
+    }
+
+    /** Write the buffered appends to disk. */
+    public synchronized void flush() {
+        if (failed || writeBufferSize == 0) {
+            return;
+        }
+        writeByteBuffer.clear();
+        writeByteBuffer.limit(writeBufferSize);
+        writeBufferSize = 0;
+        write(writeByteBuffer);
+    }
+
+    private void write(ByteBuffer buffer) {
+        try {
+            Segment segment = segments.peekLast();
+            if (writeChannel == null || segment == null) {
+                segment = rotate(segment);
+            }
+            int length = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                writeChannel.write(buffer);
+            }
+            segment.size += length;
+            if (segment.size >= segmentSize) {
+                rotate(segment);
+            }
+        }
+        catch (IOException e) {
+            fail("Unable to write to spool", e);
+        }
+    }
+
+    private Segment rotate(Segment current) throws IOException {
+        if (writeChannel != null) {
+            writeChannel.close();
+        }
+        long index = current == null ? 0 : current.index + 1;
+        File file = segmentFile(index);
+        Segment segment = new Segment(index, file, 0);
+        writeChannel = new RandomAccessFile(file, "rw").getChannel();
+        segments.add(segment);
+        return segment;
+    }
+
+    /** Evict the oldest segments until the spool fits within its maximum size. */
+    private void enforceLimits() {
+        while (totalSize > maxSize && segments.size() > 1) {
+            Segment oldest = segments.removeFirst();
+            if (oldest == readSegment) {
+                totalSize -= oldest.size - readPosition;
+                evictedSize += oldest.size - readPosition;
+                closeReadChannel();
+            } else {
+                totalSize -= oldest.size;
+                evictedSize += oldest.size;
+            }
+            Log.w(TAG, "Spool is full, evicting segment " + oldest.index);
+            if (!oldest.file.delete()) {
+                Log.w(TAG, "Unable to delete evicted segment " + oldest.file);
+            }
+        }
+    }
+
+    /**
+     * Read complete records from the oldest end of the spool, up to the specified length. The
+     * records are removed from the spool. Returns the number of bytes read, which is 0 when the
+     * spool is empty. The length must be at least MAX_RECORD_SIZE.
+     */
+    public synchronized int read(byte[] dst, int offset, int maxLength) {
+        if (failed) {
+            return 0;
+        }
+        flush();
+        try {
+            while (true) {
+                Segment segment = segments.peekFirst();
+                if (segment == null) {
+                    return 0;
+                }
+                if (readSegment != segment) {
+                    closeReadChannel();
+                    readSegment = segment;
+                    readPosition = 0;
+                    readChannel = new RandomAccessFile(segment.file, "r").getChannel();
+                }
+                if (readPosition < segment.size) {
+                    int length = readRecords(dst, offset, maxLength);
+                    if (length > 0) {
+                        totalSize -= length;
+                        return length;
+                    }
+                    if (readPosition < segment.size) {
+                        // a record larger than the destination, or a torn record at the end
+                        // of a segment written before a crash; skip the rest of the segment
+                        Log.w(TAG, "Skipping unreadable spool data in segment " + segment.index);
+                        totalSize -= segment.size - readPosition;
+                        readPosition = segment.size;
+                    }
+                }
+
+                // the segment is fully read
+                closeReadChannel();
+                segments.removeFirst();
+                if (segment.file.exists() && !segment.file.delete()) {
+                    Log.w(TAG, "Unable to delete spool segment " + segment.file);
+                }
+                if (segments.isEmpty()) {
+                    // this was also the segment being written, start over with a new one
+                    if (writeChannel != null) {
+                        writeChannel.close();
+                        writeChannel = null;
+                    }
+                    totalSize = 0;
+                    return 0;
+                }
+            }
+        }
+        catch (IOException e) {
+            fail("Unable to read from spool", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Put back the last records read, e.g. ones that couldn't be sent after all, so they're
+     * read again next. Records of a segment evicted since they were read are lost.
+     */
+    public synchronized void unread(int length) {
+        if (failed || readSegment == null || length > readPosition) {
+            return;
+        }
+        readPosition -= length;
+        totalSize += length;
+    }
+
+    private int readRecords(byte[] dst, int offset, int maxLength) throws IOException {
+        long available = readSegment.size - readPosition;
+        int length = (int) Math.min(available, maxLength);
+        ByteBuffer buffer = ByteBuffer.wrap(dst, offset, length);
+        while (buffer.hasRemaining()) {
+            if (readChannel.read(buffer, readPosition + buffer.position() - offset) < 0) {
+                break;
+            }
+        }
+        int end = buffer.position();
+
+        // only keep complete records
+        int position = offset;
+        while (position + RECORD_HEADER_SIZE <= end) {
+            int recordSize = RECORD_HEADER_SIZE + ((dst[position] & 0xFF) | ((dst[position + 1] & 0xFF) << 8));
+            if (position + recordSize > end) {
+                break;
+            }
+            position += recordSize;
+        }
+        int read = position - offset;
+        readPosition += read;
+        return read;
+    }
+
+    private void closeReadChannel() {
+        if (readChannel != null) {
+            try {
+                readChannel.close();
+            }
+            catch (IOException e) {
+                Log.w(TAG, "Unable to close spool segment", e);
+            }
+            readChannel = null;
+        }
+        readSegment = null;
+        readPosition = 0;
+    }
+
+    private void fail(String message, IOException e) {
+        Log.e(TAG, message + ", disabling spool", e);
+        failed = true;
+    }
+
+    /** Write any buffered appends and close the files; the spool can't be used afterwards. */
+    public synchronized void close() {
+        flush();
+        closeReadChannel();
+        if (writeChannel != null) {
+            try {
+                writeChannel.close();
+            }
+            catch (IOException e) {
+                Log.w(TAG, "Unable to close spool segment", e);
+            }
+            writeChannel = null;
+        }
+        failed = true;
+    }
+
+    public synchronized boolean isEmpty() {
+        return totalSize == 0;
+    }
+
+    /** The number of bytes waiting in the spool. */
+    public synchronized long getSize() {
+        return totalSize;
+    }
+
+    /** The number of messages appended to the spool. */
+    public synchronized long getSpooledCount() {
+        return spooledCount;
+    }
+
+    /** The number of bytes lost to evicting segments when the spool was full. */
+    public synchronized long getEvictedSize() {
+        return evictedSize;
+    }
+}
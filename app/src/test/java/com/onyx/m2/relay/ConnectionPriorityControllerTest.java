@@ -0,0 +1,58 @@
+package com.onyx.m2.relay;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the connection priority: up right away with the demand, down only once the demand
+ * has stayed low for the hold time.
+ */
+public class ConnectionPriorityControllerTest {
+
+    private static long s(long seconds) {
+        return TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    @Test
+    public void downAfterHoldTime() {
+        ConnectionPriorityController controller = new ConnectionPriorityController(20, 200, 10000);
+        controller.reset(ConnectionPriorityController.MODE_HIGH, s(0));
+        assertEquals(-1, controller.update(5, 0, s(1)));
+        assertEquals(-1, controller.update(5, 0, s(10)));
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, controller.update(5, 0, s(11)));
+        assertEquals(ConnectionPriorityController.MODE_LOW_POWER, controller.getMode());
+    }
+
+    @Test
+    public void upRightAway() {
+        ConnectionPriorityController controller = new ConnectionPriorityController(20, 200, 10000);
+        controller.reset(ConnectionPriorityController.MODE_LOW_POWER, s(0));
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, controller.update(50, 0, s(1)));
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, controller.update(200, 0, s(2)));
+        // a backlog of GATT operations goes high whatever the rate
+        controller.reset(ConnectionPriorityController.MODE_LOW_POWER, s(3));
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, controller.update(0, 4, s(3)));
+    }
+
+    @Test
+    public void burstsDoNotFlap() {
+        ConnectionPriorityController controller = new ConnectionPriorityController(20, 200, 10000);
+        controller.reset(ConnectionPriorityController.MODE_BALANCED, s(0));
+        // above half of the balanced rate, the demand isn't low
+        assertEquals(-1, controller.update(15, 0, s(1)));
+        assertEquals(-1, controller.update(15, 0, s(20)));
+        assertEquals(ConnectionPriorityController.MODE_BALANCED, controller.getMode());
+
+        // low demand interrupted by a burst starts the hold time over
+        assertEquals(-1, controller.update(5, 0, s(21)));
+        assertEquals(-1, controller.update(15, 0, s(25)));
+        assertEquals(-1, controller.update(5, 0, s(26)));
+        assertEquals(-1, controller.update(5, 0, s(35)));
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, controller.update(5, 0, s(36)));
+    }
+}
@@ -0,0 +1,85 @@
+package com.onyx.m2.relay;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the watchdog: a stalled message stream is detected from the expected rate of the
+ * transmitted ids, and recovery escalates until messages are back.
+ */
+public class ConnectionWatchdogTest {
+    private final List<Integer> steps = new ArrayList<>();
+    private ConnectionWatchdog watchdog;
+    private long lastTime;
+
+    private static long ms(long ms) {
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    @Before
+    public void setUp() {
+        M2MessageFlags flags = new M2MessageFlags(command -> { });
+        flags.register("server").setFlags(0, 0x257, M2Command.CAN_MSG_FLAG_TRANSMIT);
+        watchdog = new ConnectionWatchdog(flags, steps::add);
+        watchdog.onConnected(ms(1));
+        // 100 messages per second for a second
+        for (long time = ms(10); time <= ms(1000); time += ms(10)) {
+            watchdog.onMessage(0, 0x257, time);
+            lastTime = time;
+        }
+    }
+
+    @Test
+    public void detectsStall() {
+        watchdog.check(lastTime + ms(400));
+        assertTrue(steps.isEmpty());
+        watchdog.check(lastTime + ms(500));
+        assertEquals(1, steps.size());
+        assertEquals(ConnectionWatchdog.STEP_ENABLE_NOTIFICATIONS, (int) steps.get(0));
+    }
+
+    @Test
+    public void escalatesThenGivesUp() {
+        long detected = lastTime + ms(500);
+        watchdog.check(detected);
+        watchdog.check(detected + ms(1999));
+        assertEquals(1, steps.size());
+        watchdog.check(detected + ms(2000));
+        assertEquals(ConnectionWatchdog.STEP_REFRESH_GATT, (int) steps.get(1));
+        watchdog.check(detected + ms(7000));
+        assertEquals(ConnectionWatchdog.STEP_RECONNECT, (int) steps.get(2));
+
+        // reconnected, but still nothing: give up until messages are back
+        watchdog.onConnected(detected + ms(8000));
+        watchdog.check(detected + ms(18000));
+        watchdog.check(detected + ms(60000));
+        assertEquals(3, steps.size());
+    }
+
+    @Test
+    public void stopsOnceRecovered() {
+        long detected = lastTime + ms(500);
+        watchdog.check(detected);
+        watchdog.onMessage(0, 0x257, detected + ms(100));
+        watchdog.check(detected + ms(250));
+        watchdog.check(detected + ms(5000));
+        // the last message is now old, so that's a new stall, starting over from the first step
+        assertEquals(2, steps.size());
+        assertEquals(ConnectionWatchdog.STEP_ENABLE_NOTIFICATIONS, (int) steps.get(1));
+    }
+
+    @Test
+    public void nothingExpected() {
+        M2MessageFlags flags = new M2MessageFlags(command -> { });
+        ConnectionWatchdog idle = new ConnectionWatchdog(flags, steps::add);
+        idle.onConnected(0);
+        idle.check(ms(60000));
+        assertTrue(steps.isEmpty());
+    }
+}
@@ -0,0 +1,102 @@
+package com.onyx.m2.relay;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the arbitration of the message flags: the firmware must be given the union of the
+ * flags of every consumer, in as few commands as possible.
+ */
+public class M2MessageFlagsTest {
+    private final List<M2Command> written = new ArrayList<>();
+    private M2MessageFlags flags;
+
+    @Before
+    public void setUp() {
+        flags = new M2MessageFlags(written::add);
+    }
+
+    private static void assertSetFlags(M2Command command, int bus, int id, int messageFlags) {
+        assertArrayEquals(M2Command.setMessageFlags(bus, id, (byte) messageFlags).data, command.data);
+    }
+
+    private static void assertSetAllFlags(M2Command command, int messageFlags) {
+        assertArrayEquals(M2Command.setAllMessageFlags((byte) messageFlags).data, command.data);
+    }
+
+    @Test
+    public void unionOfConsumers() {
+        M2MessageFlags.Consumer server = flags.register("server");
+        M2MessageFlags.Consumer cluster = flags.register("cluster");
+        server.setFlags(0, 0x100, M2Command.CAN_MSG_FLAG_TRANSMIT);
+        cluster.setFlags(0, 0x100, M2Command.CAN_MSG_FLAG_FULL_RESOLUTION);
+        assertEquals(2, written.size());
+        assertSetFlags(written.get(1), 0, 0x100, M2Command.CAN_MSG_FLAG_TRANSMIT | M2Command.CAN_MSG_FLAG_FULL_RESOLUTION);
+
+        // setting flags that don't change the union writes nothing
+        cluster.setFlags(0, 0x100, M2Command.CAN_MSG_FLAG_FULL_RESOLUTION);
+        assertEquals(2, written.size());
+
+        server.unregister();
+        assertEquals(3, written.size());
+        assertSetFlags(written.get(2), 0, 0x100, M2Command.CAN_MSG_FLAG_FULL_RESOLUTION);
+        cluster.unregister();
+        assertEquals(4, written.size());
+        assertSetFlags(written.get(3), 0, 0x100, 0);
+    }
+
+    @Test
+    public void setAllPastThreshold() {
+        M2MessageFlags.Consumer server = flags.register("server");
+        server.setAllFlags(M2Command.CAN_MSG_FLAG_TRANSMIT);
+        assertEquals(1, written.size());
+        assertSetAllFlags(written.get(0), M2Command.CAN_MSG_FLAG_TRANSMIT);
+        assertEquals(M2Message.BUS_COUNT * M2Message.ID_COUNT, flags.getTransmittedCount());
+
+        // another consumer wanting a few more flags only gets those fixed up
+        M2MessageFlags.Consumer cluster = flags.register("cluster");
+        written.clear();
+        for (int id = 0; id < 10; id++) {
+            cluster.setFlags(1, id, (byte) (M2Command.CAN_MSG_FLAG_TRANSMIT | M2Command.CAN_MSG_FLAG_FULL_RESOLUTION));
+        }
+        assertEquals(10, written.size());
+
+        // dropping everything sets all again, then fixes up the ids the cluster still wants
+        written.clear();
+        server.setAllFlags((byte) 0);
+        assertEquals(11, written.size());
+        assertSetAllFlags(written.get(0), 0);
+        assertSetFlags(written.get(1), 1, 0, M2Command.CAN_MSG_FLAG_TRANSMIT | M2Command.CAN_MSG_FLAG_FULL_RESOLUTION);
+        assertEquals(10, flags.getTransmittedCount());
+    }
+
+    @Test
+    public void resyncSetsAllThenFixesUp() {
+        M2MessageFlags.Consumer cluster = flags.register("cluster");
+        cluster.setFlags(0, 0x257, M2Command.CAN_MSG_FLAG_TRANSMIT);
+        cluster.setFlags(2, 0x118, M2Command.CAN_MSG_FLAG_TRANSMIT);
+        written.clear();
+
+        // the M2 may have kept flags from before, so the ids at 0 are cleared too
+        flags.resync();
+        assertEquals(3, written.size());
+        assertSetAllFlags(written.get(0), 0);
+        assertSetFlags(written.get(1), 0, 0x257, M2Command.CAN_MSG_FLAG_TRANSMIT);
+        assertSetFlags(written.get(2), 2, 0x118, M2Command.CAN_MSG_FLAG_TRANSMIT);
+    }
+
+    @Test
+    public void transmittedSnapshot() {
+        M2MessageFlags.Consumer cluster = flags.register("cluster");
+        cluster.setFlags(1, 0x7FF, M2Command.CAN_MSG_FLAG_TRANSMIT);
+        boolean[] transmitted = new boolean[M2Message.BUS_COUNT * M2Message.ID_COUNT];
+        assertEquals(1, flags.getTransmitted(transmitted));
+        assertTrue(transmitted[M2Message.ID_COUNT + 0x7FF]);
+        assertFalse(transmitted[0x7FF]);
+    }
+}
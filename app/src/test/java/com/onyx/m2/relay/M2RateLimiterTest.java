@@ -0,0 +1,79 @@
+package com.onyx.m2.relay;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the rate limiter: messages past the rate are held back, and the latest one is passed
+ * once the interval has elapsed.
+ */
+public class M2RateLimiterTest {
+
+    private static M2Message message(int bus, int id, int value) {
+        return new M2Message(new byte[] { 0, 0, 0, 0, (byte) bus, (byte) id, (byte) (id >> 8), 1, (byte) value });
+    }
+
+    private static long ms(long ms) {
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    @Test
+    public void holdsAndDrainsLatest() {
+        M2RateLimiter limiter = new M2RateLimiter();
+        limiter.setMaxRate(10);
+        assertTrue(limiter.offer(message(0, 0x257, 1), ms(0)));
+        assertFalse(limiter.offer(message(0, 0x257, 2), ms(10)));
+        assertFalse(limiter.offer(message(0, 0x257, 3), ms(20)));
+        assertEquals(1, limiter.getLimitedCount());
+        // other ids have their own interval
+        assertTrue(limiter.offer(message(0, 0x118, 1), ms(20)));
+
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(0, limiter.drain(ms(50), message -> drained.add(message.getData(0))));
+        assertEquals(1, limiter.drain(ms(100), message -> drained.add(message.getData(0))));
+        assertEquals(1, drained.size());
+        assertEquals(3, (int) drained.get(0));
+
+        // the drained message started a new interval
+        assertFalse(limiter.offer(message(0, 0x257, 4), ms(150)));
+        assertEquals(0, limiter.drain(ms(199), message -> drained.add(message.getData(0))));
+        assertEquals(1, limiter.drain(ms(200), message -> drained.add(message.getData(0))));
+        assertEquals(4, (int) drained.get(1));
+    }
+
+    @Test
+    public void ratesPerId() {
+        M2RateLimiter limiter = new M2RateLimiter();
+        limiter.setMaxRate(1);
+        assertTrue(limiter.setMaxRates("0:0x257=0, 1:280=100"));
+        assertTrue(limiter.offer(message(0, 0x257, 1), ms(0)));
+        assertTrue(limiter.offer(message(0, 0x257, 2), ms(1)));
+        assertTrue(limiter.offer(message(1, 280, 1), ms(0)));
+        assertFalse(limiter.offer(message(1, 280, 2), ms(5)));
+        assertEquals(1, limiter.drain(ms(10), message -> { }));
+
+        // an id that is no longer listed goes back to the default rate
+        assertTrue(limiter.setMaxRates("1:280=100"));
+        assertTrue(limiter.offer(message(0, 0x257, 3), ms(2)));
+        assertFalse(limiter.offer(message(0, 0x257, 4), ms(3)));
+    }
+
+    @Test
+    public void invalidRates() {
+        M2RateLimiter limiter = new M2RateLimiter();
+        assertFalse(limiter.setMaxRates("-1:0x257=10"));
+        assertFalse(limiter.setMaxRates("0:-5=10"));
+        assertFalse(limiter.setMaxRates("4:0x257=10"));
+        assertFalse(limiter.setMaxRates("0:0x800=10"));
+        assertFalse(limiter.setMaxRates("0x257=10"));
+        // the valid entries are still set
+        assertFalse(limiter.setMaxRates("0:0x257=10, junk"));
+        assertTrue(limiter.offer(message(0, 0x257, 1), ms(0)));
+        assertFalse(limiter.offer(message(0, 0x257, 2), ms(1)));
+    }
+}
@@ -0,0 +1,63 @@
+package com.onyx.m2.relay;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the extraction of signals, in both byte orders, following the DBC conventions for
+ * the start bit.
+ */
+public class M2SignalTest {
+    private static final double DELTA = 1e-9;
+
+    private static M2Message message(int... data) {
+        byte[] bytes = new byte[M2Message.HEADER_SIZE + data.length];
+        bytes[4] = 0;
+        bytes[5] = 0x57;
+        bytes[6] = 0x02;
+        bytes[7] = (byte) data.length;
+        for (int i = 0; i < data.length; i++) {
+            bytes[M2Message.HEADER_SIZE + i] = (byte) data[i];
+        }
+        return new M2Message(bytes);
+    }
+
+    private static M2Signal intel(int startBit, int length, boolean signed) {
+        return new M2Signal("intel", 0, 0x257, startBit, length, true, signed, 1, 0);
+    }
+
+    private static M2Signal motorola(int startBit, int length, boolean signed) {
+        return new M2Signal("motorola", 0, 0x257, startBit, length, false, signed, 1, 0);
+    }
+
+    @Test
+    public void intelAcrossBytes() {
+        // bits 12 to 23: the high nibble of byte 1, then byte 2
+        assertEquals(0x123, intel(12, 12, false).decode(message(0x00, 0x30, 0x12)), DELTA);
+        assertEquals(0x3412, intel(0, 16, false).decode(message(0x12, 0x34)), DELTA);
+    }
+
+    @Test
+    public void motorolaAcrossBytes() {
+        assertEquals(0x1234, motorola(7, 16, false).decode(message(0x12, 0x34)), DELTA);
+        // starts at bit 3 of byte 0, continues with all of byte 1
+        assertEquals(0xABC, motorola(3, 12, false).decode(message(0x0A, 0xBC)), DELTA);
+        // within a byte: bits 5 down to 2
+        assertEquals(0xB, motorola(5, 4, false).decode(message(0x2C)), DELTA);
+    }
+
+    @Test
+    public void signedScaledAndOffset() {
+        M2Signal signal = new M2Signal("torque", 0, 0x257, 0, 8, true, true, 0.5, 10);
+        assertEquals(9.5, signal.decode(message(0xFF)), DELTA);
+        assertEquals(-1, motorola(7, 12, true).decode(message(0xFF, 0xF0)), DELTA);
+    }
+
+    @Test
+    public void isIn() {
+        assertTrue(intel(12, 12, false).isIn(message(0, 0, 0)));
+        assertFalse(intel(12, 12, false).isIn(message(0, 0)));
+        assertFalse(motorola(7, 16, false).isIn(message(0)));
+    }
+}
@@ -0,0 +1,46 @@
+package com.onyx.m2.relay;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the backpressure levels: a level is entered at its watermark, and only left once
+ * the queue is below half of it.
+ */
+public class RelayBackpressureTest {
+
+    @Test
+    public void levelsWithHysteresis() {
+        RelayBackpressure backpressure = new RelayBackpressure(100, 200, 300);
+        assertEquals(RelayBackpressure.LEVEL_NORMAL, backpressure.update(99));
+        assertEquals(RelayBackpressure.LEVEL_COALESCE, backpressure.update(100));
+        assertEquals(RelayBackpressure.LEVEL_COALESCE, backpressure.update(50));
+        assertEquals(RelayBackpressure.LEVEL_NORMAL, backpressure.update(49));
+
+        // straight to the top, then down one level at a time as the queue drains
+        assertEquals(RelayBackpressure.LEVEL_SPOOL, backpressure.update(350));
+        assertEquals(RelayBackpressure.LEVEL_SPOOL, backpressure.update(150));
+        assertEquals(RelayBackpressure.LEVEL_DROP, backpressure.update(149));
+        assertEquals(RelayBackpressure.LEVEL_DROP, backpressure.update(100));
+        assertEquals(RelayBackpressure.LEVEL_COALESCE, backpressure.update(99));
+        assertEquals(RelayBackpressure.LEVEL_NORMAL, backpressure.update(0));
+    }
+
+    @Test
+    public void priorities() {
+        RelayBackpressure backpressure = new RelayBackpressure(100, 200, 300);
+        assertTrue(backpressure.setPriorities("0:0x257, 1:280"));
+        assertTrue(backpressure.isPriority(0, 0x257));
+        assertTrue(backpressure.isPriority(1, 280));
+        assertFalse(backpressure.isPriority(0, 280));
+        assertFalse(backpressure.isPriority(-1, 0x257));
+
+        // replaces the previous list, keeping the valid entries of an invalid one
+        assertFalse(backpressure.setPriorities("0:0x118, -1:0x257, 0:-1, 4:0, 0:0x800"));
+        assertTrue(backpressure.isPriority(0, 0x118));
+        assertFalse(backpressure.isPriority(0, 0x257));
+        assertTrue(backpressure.setPriorities(""));
+        assertFalse(backpressure.isPriority(0, 0x118));
+    }
+}
@@ -0,0 +1,125 @@
+package com.onyx.m2.relay;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip tests of the relay codec: decoding an encoded batch must give back the exact
+ * records that were encoded.
+ */
+public class RelayCodecTest {
+
+    private static void addRecord(Buffer records, int ts, int bus, int id, int... data) {
+        records.writeShortLe(M2Message.HEADER_SIZE + data.length);
+        records.writeIntLe(ts);
+        records.writeByte(bus);
+        records.writeShortLe(id);
+        records.writeByte(data.length);
+        for (int b : data) {
+            records.writeByte(b);
+        }
+    }
+
+    private static byte[] roundTrip(RelayCodec.Encoder encoder, byte[] records) {
+        Buffer encoded = new Buffer();
+        encoder.encode(records, 0, records.length, encoded);
+        byte[] bytes = encoded.readByteArray();
+        Buffer decoded = new Buffer();
+        RelayCodec.decode(bytes, 0, bytes.length, decoded);
+        return decoded.readByteArray();
+    }
+
+    @Test
+    public void emptyBatch() {
+        assertArrayEquals(new byte[0], roundTrip(new RelayCodec.Encoder(), new byte[0]));
+    }
+
+    @Test
+    public void repeatedIds() {
+        Buffer records = new Buffer();
+        addRecord(records, 1000, 0, 0x123, 1, 2, 3, 4, 5, 6, 7, 8);
+        addRecord(records, 1002, 1, 0x7FF, 0xFF);
+        addRecord(records, 1005, 0, 0x123, 1, 2, 3, 4, 5, 6, 7, 9);
+        addRecord(records, 1005, 0, 0x123, 1, 2);
+        addRecord(records, 1010, 1, 0x7FF);
+        byte[] bytes = records.readByteArray();
+        assertArrayEquals(bytes, roundTrip(new RelayCodec.Encoder(), bytes));
+    }
+
+    @Test
+    public void timestampsGoingBackwardsAndWrapping() {
+        Buffer records = new Buffer();
+        addRecord(records, 0xFFFFFFF0, 0, 1, 0);
+        addRecord(records, 0x00000010, 0, 1, 1);
+        addRecord(records, 0x00000005, 0, 1, 2);
+        byte[] bytes = records.readByteArray();
+        assertArrayEquals(bytes, roundTrip(new RelayCodec.Encoder(), bytes));
+    }
+
+    @Test
+    public void outOfRangeIdsAndLongMessages() {
+        int[] longData = new int[64];
+        for (int i = 0; i < longData.length; i++) {
+            longData[i] = i % 3 == 0 ? 0 : i;
+        }
+        Buffer records = new Buffer();
+        addRecord(records, 1, 7, 0x1FFF, 1);
+        addRecord(records, 2, 7, 0x1FFF, 2);
+        addRecord(records, 3, 2, 0x100, longData);
+        longData[10] = 0x55;
+        addRecord(records, 4, 2, 0x100, longData);
+        byte[] bytes = records.readByteArray();
+        assertArrayEquals(bytes, roundTrip(new RelayCodec.Encoder(), bytes));
+    }
+
+    @Test
+    public void batchesAreIndependent() {
+        RelayCodec.Encoder encoder = new RelayCodec.Encoder();
+        Buffer first = new Buffer();
+        addRecord(first, 100, 0, 0x200, 1, 2, 3);
+        Buffer second = new Buffer();
+        addRecord(second, 200, 0, 0x200, 1, 2, 4);
+        byte[] firstBytes = first.readByteArray();
+        byte[] secondBytes = second.readByteArray();
+        assertArrayEquals(firstBytes, roundTrip(encoder, firstBytes));
+        assertArrayEquals(secondBytes, roundTrip(encoder, secondBytes));
+    }
+
+    @Test
+    public void randomBatches() {
+        Random random = new Random(42);
+        RelayCodec.Encoder encoder = new RelayCodec.Encoder();
+        for (int batch = 0; batch < 100; batch++) {
+            Buffer records = new Buffer();
+            int ts = random.nextInt();
+            int count = random.nextInt(300);
+            for (int i = 0; i < count; i++) {
+                ts += random.nextInt(20);
+                int[] data = new int[random.nextInt(9)];
+                for (int j = 0; j < data.length; j++) {
+                    data[j] = random.nextInt(4) == 0 ? random.nextInt(256) : 0;
+                }
+                addRecord(records, ts, random.nextInt(M2Message.BUS_COUNT), random.nextInt(16), data);
+            }
+            byte[] bytes = records.readByteArray();
+            assertArrayEquals(bytes, roundTrip(encoder, bytes));
+        }
+    }
+
+    @Test
+    public void compressesTypicalTraffic() {
+        Buffer records = new Buffer();
+        for (int i = 0; i < 100; i++) {
+            addRecord(records, 5000 + i, 0, 0x100 + i % 10, 0x10, 0x20, i & 0xFF, 0, 0, 0, 0x7F, 0);
+        }
+        byte[] bytes = records.readByteArray();
+        Buffer encoded = new Buffer();
+        new RelayCodec.Encoder().encode(bytes, 0, bytes.length, encoded);
+        assertTrue("encoded " + encoded.size() + " of " + bytes.length + " bytes", encoded.size() * 3 < bytes.length);
+    }
+}